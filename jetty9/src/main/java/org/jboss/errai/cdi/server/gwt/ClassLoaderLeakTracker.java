@@ -0,0 +1,245 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.io.File;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import com.google.gwt.core.ext.TreeLogger;
+
+/**
+ * Tracks retired web app class loader generations through weak references,
+ * to find the ones a reload leaks. After each reload {@link #report} forces a
+ * GC, lists the generations that are still reachable and logs how heap,
+ * metaspace (perm gen before Java 8) and the loaded class count moved since
+ * the previous report.
+ * <p/>
+ * For the oldest surviving generation it can also check the usual suspects
+ * that keep a loader alive in this launcher: the static
+ * {@code ServiceObjectFactory.serviceSingleton}, Javassist's static
+ * {@code ProxyFactory.classLoaderProvider}, Jetty's JNDI context map, and
+ * threads started or context-bound by the web app. A heap dump can be written
+ * for what those checks miss.
+ */
+public final class ClassLoaderLeakTracker {
+
+	private static final String[][] STATIC_SUSPECTS = {
+			{ "org.jboss.errai.cdi.server.gwt.ServiceObjectFactory", "serviceSingleton" },
+			{ "javassist.util.proxy.ProxyFactory", "classLoaderProvider" },
+			{ "org.eclipse.jetty.jndi.ContextFactory", "__contextMap" } };
+
+	private static final int MAX_GC_ATTEMPTS = 3;
+	private static final long MB = 1024 * 1024;
+
+	private static final class Generation {
+		final int number;
+		final WeakReference<ClassLoader> loader;
+
+		Generation(int number, ClassLoader loader) {
+			this.number = number;
+			this.loader = new WeakReference<ClassLoader>(loader);
+		}
+	}
+
+	private final List<Generation> retired = new ArrayList<Generation>();
+	private int generations;
+
+	private long lastHeap = -1;
+	private long lastMetaspace;
+	private long lastClasses;
+
+	/**
+	 * Starts tracking a class loader the web app no longer uses.
+	 */
+	public synchronized void retire(ClassLoader loader) {
+		retired.add(new Generation(++generations, loader));
+	}
+
+	/**
+	 * @param roots whether to look for the references keeping the oldest
+	 *            surviving generation alive
+	 * @param heapDumpDir where to write a heap dump when a generation
+	 *            survives, or null for none
+	 */
+	public synchronized void report(TreeLogger logger, boolean roots,
+			File heapDumpDir) {
+		List<Generation> survivors = collect();
+
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+				.getUsed();
+		long metaspace = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			String name = pool.getName();
+			if (name.contains("Metaspace") || name.contains("Perm Gen")) {
+				metaspace += pool.getUsage().getUsed();
+			}
+		}
+		ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+		long classes = classLoading.getLoadedClassCount();
+
+		if (lastHeap >= 0) {
+			logger.log(TreeLogger.TRACE, "Since the previous reload: heap "
+					+ signed((heap - lastHeap) / MB) + " MB, metaspace "
+					+ signed((metaspace - lastMetaspace) / MB) + " MB, loaded classes "
+					+ signed(classes - lastClasses));
+		}
+		lastHeap = heap;
+		lastMetaspace = metaspace;
+		lastClasses = classes;
+
+		if (survivors.isEmpty()) {
+			logger.log(TreeLogger.TRACE, "All " + generations
+					+ " retired class loader generations were collected");
+			return;
+		}
+
+		StringBuilder numbers = new StringBuilder();
+		for (Generation generation : survivors) {
+			numbers.append(numbers.length() == 0 ? "#" : ", #").append(generation.number);
+		}
+		TreeLogger branch = logger.branch(TreeLogger.WARN, survivors.size()
+				+ " of " + generations + " retired class loader generations are still reachable after GC: "
+				+ numbers);
+
+		Generation oldest = survivors.get(0);
+		ClassLoader loader = oldest.loader.get();
+		if (roots && loader != null) {
+			List<String> found = findRoots(loader);
+			TreeLogger rootBranch = branch.branch(TreeLogger.WARN,
+					"Suspected references to generation #" + oldest.number);
+			if (found.isEmpty()) {
+				rootBranch.log(TreeLogger.WARN, "None of the known suspects, use a heap dump");
+			}
+			for (String root : found) {
+				rootBranch.log(TreeLogger.WARN, root);
+			}
+		}
+		loader = null;
+
+		if (heapDumpDir != null) {
+			File dump = new File(heapDumpDir, "errai-jetty-reload-"
+					+ generations + ".hprof");
+			try {
+				ManagementFactory.getPlatformMBeanServer().invoke(
+						new ObjectName("com.sun.management:type=HotSpotDiagnostic"),
+						"dumpHeap", new Object[] { dump.getAbsolutePath(), Boolean.TRUE },
+						new String[] { String.class.getName(), boolean.class.getName() });
+				branch.log(TreeLogger.WARN, "Heap dump written to " + dump);
+			} catch (Exception e) {
+				branch.log(TreeLogger.WARN, "Unable to write a heap dump to " + dump, e);
+			}
+		}
+	}
+
+	/**
+	 * Runs the GC until every retired generation is collected or the
+	 * attempts run out, and forgets the collected ones.
+	 *
+	 * @return the survivors, oldest first
+	 */
+	private List<Generation> collect() {
+		List<Generation> survivors = new ArrayList<Generation>();
+		for (int attempt = 0; attempt < MAX_GC_ATTEMPTS; attempt++) {
+			System.gc();
+			survivors.clear();
+			for (Iterator<Generation> it = retired.iterator(); it.hasNext();) {
+				Generation generation = it.next();
+				if (generation.loader.get() == null) {
+					it.remove();
+				} else {
+					survivors.add(generation);
+				}
+			}
+			if (survivors.isEmpty()) {
+				break;
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return survivors;
+	}
+
+	private static List<String> findRoots(ClassLoader loader) {
+		List<String> roots = new ArrayList<String>();
+		ClassLoader own = ClassLoaderLeakTracker.class.getClassLoader();
+		for (String[] suspect : STATIC_SUSPECTS) {
+			Object value;
+			try {
+				Field field = Class.forName(suspect[0], false, own)
+						.getDeclaredField(suspect[1]);
+				field.setAccessible(true);
+				value = field.get(null);
+			} catch (Throwable t) {
+				continue;
+			}
+			if (references(value, loader)) {
+				roots.add("static field " + suspect[0] + "." + suspect[1]);
+			}
+		}
+
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (isWithin(thread.getContextClassLoader(), loader)) {
+				roots.add("context class loader of thread '" + thread.getName() + "'");
+			} else if (isWithin(thread.getClass().getClassLoader(), loader)) {
+				roots.add("thread '" + thread.getName() + "' of class "
+						+ thread.getClass().getName());
+			}
+		}
+		return roots;
+	}
+
+	private static boolean references(Object value, ClassLoader loader) {
+		if (value == null) {
+			return false;
+		}
+		if (value instanceof ClassLoader) {
+			return isWithin((ClassLoader) value, loader);
+		}
+		if (value instanceof Map) {
+			synchronized (value) {
+				for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+					if (references(entry.getKey(), loader)
+							|| (entry.getValue() != null && isWithin(entry
+									.getValue().getClass().getClassLoader(), loader))) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+		return isWithin(value.getClass().getClassLoader(), loader);
+	}
+
+	/**
+	 * @return true if {@code candidate} is {@code loader} or one of its
+	 *         descendants
+	 */
+	private static boolean isWithin(ClassLoader candidate, ClassLoader loader) {
+		for (ClassLoader current = candidate; current != null; current = current
+				.getParent()) {
+			if (current == loader) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String signed(long value) {
+		return value >= 0 ? "+" + value : String.valueOf(value);
+	}
+}
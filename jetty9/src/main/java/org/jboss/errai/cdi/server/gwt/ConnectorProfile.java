@@ -0,0 +1,289 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+
+/**
+ * Connector settings for the embedded Jetty server. A profile is picked with
+ * the {@code errai.jetty.connector.profile} system property ({@code dev},
+ * {@code throughput} or {@code lowlatency}) and each of its values can be
+ * overridden individually with {@code errai.jetty.connector.*} properties.
+ * Without a profile, Jetty's own defaults are kept for everything not
+ * overridden.
+ *
+ * Long-poll {@code *.erraiBus} requests are held open by the bus for a while,
+ * so the idle timeout must stay well above the bus poll timeout; static GWT
+ * artifacts are unaffected by it.
+ */
+public class ConnectorProfile {
+
+	public static final String PROPERTY_PROFILE = "errai.jetty.connector.profile";
+	public static final String PROPERTY_ACCEPTORS = "errai.jetty.connector.acceptors";
+	public static final String PROPERTY_SELECTORS = "errai.jetty.connector.selectors";
+	public static final String PROPERTY_ACCEPT_QUEUE_SIZE = "errai.jetty.connector.acceptQueueSize";
+	public static final String PROPERTY_IDLE_TIMEOUT = "errai.jetty.connector.idleTimeout";
+	public static final String PROPERTY_OUTPUT_BUFFER_SIZE = "errai.jetty.connector.outputBufferSize";
+	public static final String PROPERTY_REQUEST_HEADER_SIZE = "errai.jetty.connector.requestHeaderSize";
+
+	private final String name;
+
+	/*
+	 * Null leaves the setting to Jetty.
+	 */
+	private Integer acceptors;
+	private Integer selectors;
+	private Integer acceptQueueSize;
+
+	private Long idleTimeout;
+	private Integer outputBufferSize;
+	private Integer requestHeaderSize;
+
+	/**
+	 * Creates a profile that leaves every setting to Jetty until it is set.
+	 */
+	public ConnectorProfile(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Leaves every setting to Jetty, as a plain {@link ServerConnector} does.
+	 */
+	public static ConnectorProfile jettyDefaults() {
+		return new ConnectorProfile("default");
+	}
+
+	/**
+	 * A single acceptor and selector, and a long idle timeout so parked bus
+	 * polls survive a debugger breakpoint.
+	 */
+	public static ConnectorProfile dev() {
+		ConnectorProfile profile = new ConnectorProfile("dev");
+		profile.setAcceptors(1);
+		profile.setSelectors(1);
+		profile.setIdleTimeout(300000L);
+		profile.setOutputBufferSize(32 * 1024);
+		profile.setRequestHeaderSize(8 * 1024);
+		return profile;
+	}
+
+	/**
+	 * Jetty's default acceptor and selector counts with a deep accept queue
+	 * and large output buffers.
+	 */
+	public static ConnectorProfile throughput() {
+		ConnectorProfile profile = new ConnectorProfile("throughput");
+		profile.setAcceptQueueSize(1024);
+		profile.setIdleTimeout(60000L);
+		profile.setOutputBufferSize(64 * 1024);
+		profile.setRequestHeaderSize(8 * 1024);
+		return profile;
+	}
+
+	/**
+	 * One selector per core and small output buffers, so responses are
+	 * flushed as soon as possible.
+	 */
+	public static ConnectorProfile lowLatency() {
+		ConnectorProfile profile = new ConnectorProfile("lowlatency");
+		profile.setSelectors(Runtime.getRuntime().availableProcessors());
+		profile.setAcceptQueueSize(256);
+		profile.setIdleTimeout(30000L);
+		profile.setOutputBufferSize(8 * 1024);
+		profile.setRequestHeaderSize(8 * 1024);
+		return profile;
+	}
+
+	/**
+	 * Resolves the profile named by {@link #PROPERTY_PROFILE} (defaulting to
+	 * {@link #jettyDefaults()}) and applies the individual property
+	 * overrides.
+	 */
+	public static ConnectorProfile fromSystemProperties() {
+		String profileName = System.getProperty(PROPERTY_PROFILE);
+		ConnectorProfile profile;
+		if (profileName == null || profileName.length() == 0) {
+			profile = jettyDefaults();
+		} else if ("throughput".equalsIgnoreCase(profileName)) {
+			profile = throughput();
+		} else if ("lowlatency".equalsIgnoreCase(profileName)) {
+			profile = lowLatency();
+		} else if ("dev".equalsIgnoreCase(profileName)) {
+			profile = dev();
+		} else {
+			throw new IllegalArgumentException("Unknown connector profile '"
+					+ profileName + "'; expected dev, throughput or lowlatency");
+		}
+
+		if (Integer.getInteger(PROPERTY_ACCEPTORS) != null) {
+			profile.setAcceptors(Integer.getInteger(PROPERTY_ACCEPTORS));
+		}
+		if (Integer.getInteger(PROPERTY_SELECTORS) != null) {
+			profile.setSelectors(Integer.getInteger(PROPERTY_SELECTORS));
+		}
+		if (Integer.getInteger(PROPERTY_ACCEPT_QUEUE_SIZE) != null) {
+			profile.setAcceptQueueSize(Integer.getInteger(PROPERTY_ACCEPT_QUEUE_SIZE));
+		}
+		if (Long.getLong(PROPERTY_IDLE_TIMEOUT) != null) {
+			profile.setIdleTimeout(Long.getLong(PROPERTY_IDLE_TIMEOUT));
+		}
+		if (Integer.getInteger(PROPERTY_OUTPUT_BUFFER_SIZE) != null) {
+			profile.setOutputBufferSize(Integer.getInteger(PROPERTY_OUTPUT_BUFFER_SIZE));
+		}
+		if (Integer.getInteger(PROPERTY_REQUEST_HEADER_SIZE) != null) {
+			profile.setRequestHeaderSize(Integer.getInteger(PROPERTY_REQUEST_HEADER_SIZE));
+		}
+		return profile;
+	}
+
+	/**
+	 * Creates an HTTP connector for the given server with this profile's
+	 * settings.
+	 */
+	public ServerConnector newConnector(Server server) {
+		HttpConfiguration config = new HttpConfiguration();
+		if (outputBufferSize != null) {
+			config.setOutputBufferSize(outputBufferSize);
+		}
+		if (requestHeaderSize != null) {
+			config.setRequestHeaderSize(requestHeaderSize);
+		}
+
+		// -1 makes Jetty pick the acceptor and selector counts
+		ServerConnector connector = new ServerConnector(server, null, null,
+				null, acceptors != null ? acceptors : -1,
+				selectors != null ? selectors : -1,
+				new HttpConnectionFactory(config));
+		if (acceptQueueSize != null) {
+			connector.setAcceptQueueSize(acceptQueueSize);
+		}
+		if (idleTimeout != null) {
+			connector.setIdleTimeout(idleTimeout);
+		}
+		return connector;
+	}
+
+	/**
+	 * Reads back the settings actually in effect on a connector, including the
+	 * values Jetty picked for anything left at its default.
+	 */
+	public static String describe(ServerConnector connector) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("acceptors=").append(connector.getAcceptors());
+		builder.append(", selectors=").append(
+				connector.getSelectorManager().getSelectorCount());
+		builder.append(", acceptQueueSize=").append(
+				connector.getAcceptQueueSize());
+		builder.append(", idleTimeout=").append(connector.getIdleTimeout());
+		HttpConnectionFactory http = connector
+				.getConnectionFactory(HttpConnectionFactory.class);
+		if (http != null) {
+			HttpConfiguration config = http.getHttpConfiguration();
+			builder.append(", outputBufferSize=").append(
+					config.getOutputBufferSize());
+			builder.append(", requestHeaderSize=").append(
+					config.getRequestHeaderSize());
+		}
+		return builder.toString();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the setting, or null if it is left to Jetty
+	 */
+	public Integer getAcceptors() {
+		return acceptors;
+	}
+
+	/**
+	 * @param acceptors the setting, or null to leave it to Jetty
+	 */
+	public void setAcceptors(Integer acceptors) {
+		this.acceptors = acceptors;
+	}
+
+	/**
+	 * @return the setting, or null if it is left to Jetty
+	 */
+	public Integer getSelectors() {
+		return selectors;
+	}
+
+	/**
+	 * @param selectors the setting, or null to leave it to Jetty
+	 */
+	public void setSelectors(Integer selectors) {
+		this.selectors = selectors;
+	}
+
+	/**
+	 * @return the setting, or null if it is left to Jetty
+	 */
+	public Integer getAcceptQueueSize() {
+		return acceptQueueSize;
+	}
+
+	/**
+	 * @param acceptQueueSize the setting, or null to leave it to Jetty
+	 */
+	public void setAcceptQueueSize(Integer acceptQueueSize) {
+		this.acceptQueueSize = acceptQueueSize;
+	}
+
+	/**
+	 * @return the setting, or null if it is left to Jetty
+	 */
+	public Long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout the setting, or null to leave it to Jetty
+	 */
+	public void setIdleTimeout(Long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * @return the setting, or null if it is left to Jetty
+	 */
+	public Integer getOutputBufferSize() {
+		return outputBufferSize;
+	}
+
+	/**
+	 * @param outputBufferSize the setting, or null to leave it to Jetty
+	 */
+	public void setOutputBufferSize(Integer outputBufferSize) {
+		this.outputBufferSize = outputBufferSize;
+	}
+
+	/**
+	 * @return the setting, or null if it is left to Jetty
+	 */
+	public Integer getRequestHeaderSize() {
+		return requestHeaderSize;
+	}
+
+	/**
+	 * @param requestHeaderSize the setting, or null to leave it to Jetty
+	 */
+	public void setRequestHeaderSize(Integer requestHeaderSize) {
+		this.requestHeaderSize = requestHeaderSize;
+	}
+
+	@Override
+	public String toString() {
+		return name + " [acceptors=" + acceptors + ", selectors=" + selectors
+				+ ", acceptQueueSize=" + acceptQueueSize + ", idleTimeout="
+				+ idleTimeout + ", outputBufferSize=" + outputBufferSize
+				+ ", requestHeaderSize=" + requestHeaderSize + "]";
+	}
+}
@@ -0,0 +1,274 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import static org.jboss.errai.bus.server.io.MessageFactory.createCommandMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jboss.errai.bus.client.api.QueueSession;
+import org.jboss.errai.bus.client.framework.ClientMessageBus;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueActivationCallback;
+import org.jboss.errai.bus.server.service.ErraiService;
+import org.jboss.errai.bus.server.servlet.AbstractErraiServlet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking replacement for
+ * {@link org.jboss.errai.bus.server.servlet.DefaultBlockingServlet} built on
+ * Servlet 3.0 async support, which Jetty 9 implements on top of its async I/O.
+ * A long poll with nothing to deliver is parked on an {@link AsyncContext} and
+ * gives its worker thread back to the pool; it is resumed on a pool thread
+ * when a message is queued for the client, or answered empty when the poll
+ * timeout expires.
+ * <p/>
+ * With the blocking servlet every connected browser pins one worker thread, so
+ * the pool size caps the number of clients. Here only polls that are actively
+ * writing hold a thread; {@link #getParkedPolls()} reports how many are
+ * waiting without one.
+ * <p/>
+ * <pre>
+ * {@code <servlet>}
+ *   {@code <servlet-name>ErraiServlet</servlet-name>}
+ *   {@code <servlet-class>org.jboss.errai.cdi.server.gwt.JettyAsyncBusServlet</servlet-class>}
+ *   {@code <async-supported>true</async-supported>}
+ *   {@code <load-on-startup>1</load-on-startup>}
+ * {@code </servlet>}
+ * </pre>
+ * The optional {@code poll-timeout} init parameter sets how long, in
+ * milliseconds, a poll stays parked (default 45000). It must be lower than
+ * the connector idle timeout.
+ * <p/>
+ * When the servlet is destroyed, the polls still parked are answered with
+ * what their queues hold, so that their clients poll again instead of being
+ * cut, e.g. against the web app that replaced this one.
+ */
+public class JettyAsyncBusServlet extends AbstractErraiServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger log = LoggerFactory.getLogger(JettyAsyncBusServlet.class);
+
+  private static final long DEFAULT_POLL_TIMEOUT = 45000;
+
+  private static final AtomicInteger parkedPolls = new AtomicInteger();
+
+  private long pollTimeout = DEFAULT_POLL_TIMEOUT;
+
+  private final Set<ParkedPoll> parked = Collections.newSetFromMap(new ConcurrentHashMap<ParkedPoll, Boolean>());
+
+  /**
+   * @return the number of long polls currently parked without a thread
+   */
+  public static int getParkedPolls() {
+    return parkedPolls.get();
+  }
+
+  @Override
+  public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    String timeout = config.getInitParameter("poll-timeout");
+    if (timeout != null) {
+      pollTimeout = Long.parseLong(timeout.trim());
+    }
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+      IOException {
+    final MessageQueue queue = getQueue(request, response);
+    if (queue == null) {
+      return;
+    }
+
+    response.setContentType("application/json");
+    queue.heartBeat();
+
+    // The activation lock closes the gap between checking for messages and
+    // registering the callback; the bus activates the queue under this lock.
+    synchronized (queue.getActivationLock()) {
+      if (queue.messagesWaiting()) {
+        queue.poll(false, response.getOutputStream());
+        return;
+      }
+
+      final AsyncContext asyncContext = request.startAsync();
+      asyncContext.setTimeout(pollTimeout);
+      final ParkedPoll poll = new ParkedPoll(queue, asyncContext);
+      asyncContext.addListener(poll);
+      queue.setActivationCallback(poll);
+      parked.add(poll);
+      parkedPolls.incrementAndGet();
+    }
+  }
+
+  @Override
+  public void destroy() {
+    for (ParkedPoll poll : new ArrayList<ParkedPoll>(parked)) {
+      poll.resume();
+    }
+    super.destroy();
+  }
+
+  /**
+   * Looks up the bus queue of the requesting client. If there is none, the
+   * response is answered here.
+   *
+   * @return the queue, or null if the request has been handled
+   */
+  protected MessageQueue getQueue(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    final QueueSession session = sessionProvider.createOrGetSession(request.getSession(true),
+        request.getHeader(ClientMessageBus.REMOTE_QUEUE_ID_HEADER));
+
+    final MessageQueue queue = service.getBus().getQueue(session);
+    if (queue == null) {
+      switch (getConnectionPhase(request)) {
+      case CONNECTING:
+      case DISCONNECTING:
+        return null;
+      }
+      sendDisconnectDueToSessionExpiry(response.getOutputStream());
+    }
+    return queue;
+  }
+
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+      IOException {
+    final QueueSession session = sessionProvider.createOrGetSession(request.getSession(true),
+        request.getHeader(ClientMessageBus.REMOTE_QUEUE_ID_HEADER));
+    final ErraiService<?> erraiService = service;
+    try {
+      erraiService.store(createCommandMessage(session, request));
+    }
+    catch (Exception e) {
+      if (e.getMessage() == null || !e.getMessage().contains("expired")) {
+        writeExceptionToOutputStream(response, e);
+      }
+      return;
+    }
+
+    // Like the blocking servlet, answer the POST with whatever is queued by
+    // now, so replies to the messages just stored don't wait for a poll.
+    final MessageQueue queue = getQueue(request, response);
+    if (queue == null) {
+      return;
+    }
+    response.setContentType("application/json");
+    try {
+      queue.heartBeat();
+      queue.poll(false, response.getOutputStream());
+    }
+    catch (Throwable t) {
+      writeExceptionToOutputStream(response, t);
+    }
+  }
+
+  /**
+   * A poll waiting for its queue to be activated. Completes exactly once,
+   * whichever of activation, timeout or error comes first, and is dispatched
+   * at most once however many messages activate it.
+   */
+  private class ParkedPoll implements QueueActivationCallback, AsyncListener, Runnable {
+    private final MessageQueue queue;
+    private final AsyncContext asyncContext;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final AtomicBoolean dispatched = new AtomicBoolean();
+
+    ParkedPoll(MessageQueue queue, AsyncContext asyncContext) {
+      this.queue = queue;
+      this.asyncContext = asyncContext;
+    }
+
+    @Override
+    public void activate(MessageQueue queue) {
+      // Called on the sending thread while it holds the activation lock, so
+      // hand the write over to a container thread. release() clears the
+      // callback under the same lock, so a poll that is not done yet cannot
+      // be completed before start() has been called.
+      if (!done.get() && dispatched.compareAndSet(false, true)) {
+        asyncContext.start(this);
+      }
+    }
+
+    @Override
+    public void run() {
+      resume();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+      resume();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+      if (release()) {
+        asyncContext.complete();
+      }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+      release();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+
+    private void resume() {
+      if (!release()) {
+        return;
+      }
+      try {
+        queue.heartBeat();
+        queue.poll(false, asyncContext.getResponse().getOutputStream());
+      }
+      catch (Throwable t) {
+        try {
+          writeExceptionToOutputStream((HttpServletResponse) asyncContext.getResponse(), t);
+        }
+        catch (IOException e) {
+          log.debug("failed to write exception to parked poll", e);
+        }
+      }
+      finally {
+        asyncContext.complete();
+      }
+    }
+
+    /**
+     * @return true if this call released the poll, false if it already was
+     */
+    private boolean release() {
+      if (!done.compareAndSet(false, true)) {
+        return false;
+      }
+      parked.remove(this);
+      parkedPolls.decrementAndGet();
+      synchronized (queue.getActivationLock()) {
+        if (queue.getActivationCallback() == this) {
+          queue.setActivationCallback(null);
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,324 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.QueueActivationCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server-Sent Events downstream for the Errai bus, for networks where
+ * WebSockets do not get through. A GET that accepts {@code text/event-stream}
+ * opens one long-lived response and every message for the client is pushed
+ * over it as a {@code data:} event, so no poll has to be re-established after
+ * a delivery. Messages arriving within {@code flush-interval} milliseconds
+ * (default 5) of each other are written and flushed as one event; the
+ * interval caps a client at about one batch per interval, so longer ones
+ * only pay off for clients that receive many messages at once. Client to
+ * server traffic stays on ordinary POSTs, and GETs without the event-stream
+ * accept type fall back to {@link JettyAsyncBusServlet} long-polling.
+ * <p/>
+ * This is the server side only: the Errai 2.3 client bus has no
+ * {@code EventSource} consumer and keeps long-polling, so using the stream
+ * takes a custom client that opens it and feeds the events to the bus.
+ * <p/>
+ * Writes block, as Jetty 9.0 has no asynchronous servlet output, so they run
+ * on a pool of {@code writer-threads} threads (default 4) rather than on the
+ * timer thread. A stream never has more than one write pending or running: a
+ * slow client holds at most one writer thread, until Jetty's idle timeout
+ * fails its write, and its messages wait in its queue meanwhile.
+ * <p/>
+ * Mapped like the other bus servlets, with {@code async-supported} enabled.
+ * {@link #getOpenStreams()} and {@link #getEventsSent()} give the numbers
+ * needed to compare per-client throughput with the blocking servlet.
+ */
+public class JettyEventStreamBusServlet extends JettyAsyncBusServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger log = LoggerFactory.getLogger(JettyEventStreamBusServlet.class);
+
+  private static final String EVENT_STREAM = "text/event-stream";
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final byte[] DATA = "data: ".getBytes(UTF_8);
+  private static final byte[] END_OF_EVENT = "\n\n".getBytes(UTF_8);
+  private static final byte[] KEEP_ALIVE = ":\n\n".getBytes(UTF_8);
+
+  private static final AtomicInteger openStreams = new AtomicInteger();
+  private static final AtomicLong eventsSent = new AtomicLong();
+
+  private long flushInterval = 5;
+  private long keepAliveInterval = 15000;
+  private int writerThreads = 4;
+
+  private transient ScheduledExecutorService scheduler;
+  private transient ExecutorService writers;
+
+  /**
+   * @return the number of event streams currently open
+   */
+  public static int getOpenStreams() {
+    return openStreams.get();
+  }
+
+  /**
+   * @return the number of events written since startup; each event carries
+   *         one batch of messages
+   */
+  public static long getEventsSent() {
+    return eventsSent.get();
+  }
+
+  @Override
+  public void init(ServletConfig config) throws ServletException {
+    super.init(config);
+    String interval = config.getInitParameter("flush-interval");
+    if (interval != null) {
+      flushInterval = Long.parseLong(interval.trim());
+    }
+    interval = config.getInitParameter("keep-alive-interval");
+    if (interval != null) {
+      keepAliveInterval = Long.parseLong(interval.trim());
+    }
+    String threads = config.getInitParameter("writer-threads");
+    if (threads != null) {
+      writerThreads = Integer.parseInt(threads.trim());
+    }
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "errai-event-stream");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(writerThreads, writerThreads, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "errai-event-stream-writer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    pool.allowCoreThreadTimeOut(true);
+    writers = pool;
+  }
+
+  @Override
+  public void destroy() {
+    scheduler.shutdownNow();
+    writers.shutdownNow();
+    super.destroy();
+  }
+
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException,
+      IOException {
+    String accept = request.getHeader("Accept");
+    if (accept == null || !accept.contains(EVENT_STREAM)) {
+      super.doGet(request, response);
+      return;
+    }
+
+    final MessageQueue queue = getQueue(request, response);
+    if (queue == null) {
+      return;
+    }
+
+    response.setContentType(EVENT_STREAM);
+    response.setCharacterEncoding("UTF-8");
+    response.setHeader("Cache-Control", "no-cache");
+    response.flushBuffer();
+
+    final AsyncContext asyncContext = request.startAsync();
+    asyncContext.setTimeout(0);
+    final EventStream stream = new EventStream(queue, asyncContext);
+    asyncContext.addListener(stream);
+    openStreams.incrementAndGet();
+
+    synchronized (queue.getActivationLock()) {
+      queue.setActivationCallback(stream);
+    }
+    stream.keepAlive = scheduler.scheduleWithFixedDelay(stream.keepAliveTask, keepAliveInterval,
+        keepAliveInterval, TimeUnit.MILLISECONDS);
+    if (stream.closed.get()) {
+      stream.keepAlive.cancel(false);
+    }
+
+    // deliver anything that queued up before the stream was opened
+    if (queue.messagesWaiting()) {
+      stream.activate(queue);
+    }
+  }
+
+  /**
+   * One open event stream. Activations only schedule a flush, so messages
+   * queued in quick succession go out in a single event. {@code writePending}
+   * stays set from the moment a write is scheduled until it has finished, so
+   * writes of one stream never overlap or queue up behind each other.
+   */
+  private class EventStream implements QueueActivationCallback, AsyncListener, Runnable {
+    private final MessageQueue queue;
+    private final AsyncContext asyncContext;
+    private final AtomicBoolean writePending = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(1024);
+
+    private volatile ScheduledFuture<?> keepAlive;
+    private volatile boolean keepAliveDue;
+
+    private final Runnable dispatch = new Runnable() {
+      @Override
+      public void run() {
+        submit();
+      }
+    };
+
+    private final Runnable keepAliveTask = new Runnable() {
+      @Override
+      public void run() {
+        keepAliveDue = true;
+        if (!closed.get() && writePending.compareAndSet(false, true)) {
+          submit();
+        }
+      }
+    };
+
+    EventStream(MessageQueue queue, AsyncContext asyncContext) {
+      this.queue = queue;
+      this.asyncContext = asyncContext;
+    }
+
+    @Override
+    public void activate(MessageQueue queue) {
+      if (!closed.get() && writePending.compareAndSet(false, true)) {
+        scheduler.schedule(dispatch, flushInterval, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void submit() {
+      try {
+        writers.execute(this);
+      }
+      catch (RuntimeException e) {
+        // rejected after destroy()
+        writePending.set(false);
+      }
+    }
+
+    @Override
+    public void run() {
+      write();
+      writePending.set(false);
+      // anything that arrived during the write found writePending still set
+      if (!closed.get() && queue.messagesWaiting()) {
+        activate(queue);
+      }
+    }
+
+    /**
+     * Writes whatever the queue holds as one event, or a keep-alive comment
+     * when it holds nothing and one is due.
+     */
+    private void write() {
+      if (closed.get()) {
+        return;
+      }
+      try {
+        queue.heartBeat();
+        OutputStream out = asyncContext.getResponse().getOutputStream();
+        batch.reset();
+        queue.poll(false, batch);
+        boolean keepAliveWanted = keepAliveDue;
+        keepAliveDue = false;
+        if (batch.size() > 0) {
+          out.write(DATA);
+          batch.writeTo(out);
+          out.write(END_OF_EVENT);
+          eventsSent.incrementAndGet();
+        }
+        else if (keepAliveWanted) {
+          out.write(KEEP_ALIVE);
+        }
+        else {
+          return;
+        }
+        out.flush();
+      }
+      catch (Throwable t) {
+        log.debug("closing event stream after failed write", t);
+        close();
+      }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+      release();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+      close();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+      close();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+
+    private void close() {
+      if (release()) {
+        asyncContext.complete();
+      }
+    }
+
+    private boolean release() {
+      if (!closed.compareAndSet(false, true)) {
+        return false;
+      }
+      openStreams.decrementAndGet();
+      if (keepAlive != null) {
+        keepAlive.cancel(false);
+      }
+      synchronized (queue.getActivationLock()) {
+        if (queue.getActivationCallback() == this) {
+          queue.setActivationCallback(null);
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -4,10 +4,35 @@
  */
 package org.jboss.errai.cdi.server.gwt;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.naming.Binding;
 import javax.naming.NamingEnumeration;
@@ -15,15 +40,22 @@ import javax.naming.NamingException;
 
 import org.eclipse.jetty.http.HttpField;
 import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.LocalConnector;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.RequestLog;
 import org.eclipse.jetty.server.Response;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.RequestLogHandler;
+import org.eclipse.jetty.util.BlockingArrayQueue;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.log.Logger;
+import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.eclipse.jetty.webapp.WebAppClassLoader;
 import org.eclipse.jetty.webapp.WebAppContext;
 import org.slf4j.LoggerFactory;
@@ -60,20 +92,244 @@ public class JettyLauncher extends ServletContainerLauncher {
 	public static class JettyRequestLogger extends AbstractLifeCycle implements
 			RequestLog {
 
+		/**
+		 * What {@link JettyRequestLogger#log(Request, Response)} does with an
+		 * entry when the asynchronous queue is full.
+		 */
+		public enum OverflowPolicy {
+			/** Discard the entry and count it as dropped. */
+			DROP,
+			/** Log the entry synchronously on the request thread. */
+			CALLER_RUNS
+		}
+
+		/**
+		 * Immutable snapshot of what gets logged for one request, taken on the
+		 * request thread so it can be formatted later on another one.
+		 */
+		protected static final class Entry {
+			final int status;
+			final TreeLogger.Type logStatus;
+			final TreeLogger.Type logHeaders;
+			final String method;
+			final String uri;
+			final String remoteUser;
+			final String remoteHost;
+			final long contentCount;
+			/** The request and response headers as one block, or null. */
+			final String headers;
+			/** Time from request arrival to logging, or -1 if not reported. */
+			final long latencyMillis;
+
+			Entry(int status, TreeLogger.Type logStatus,
+					TreeLogger.Type logHeaders, String method, String uri,
+					String remoteUser, String remoteHost, long contentCount,
+					String headers, long latencyMillis) {
+				this.status = status;
+				this.logStatus = logStatus;
+				this.logHeaders = logHeaders;
+				this.method = method;
+				this.uri = uri;
+				this.remoteUser = remoteUser;
+				this.remoteHost = remoteHost;
+				this.contentCount = contentCount;
+				this.headers = headers;
+				this.latencyMillis = latencyMillis;
+			}
+		}
+
+		private static final int BATCH_SIZE = 256;
+
+		/**
+		 * Per-thread builder for the header block, so capturing headers costs
+		 * one String per request. Dropped if a huge request inflated it.
+		 */
+		private static final int HEADER_BUILDER_SIZE = 1024;
+		private static final int HEADER_BUILDER_MAX_SIZE = 16 * 1024;
+		private static final ThreadLocal<StringBuilder> headerBuilder = new ThreadLocal<StringBuilder>() {
+			@Override
+			protected StringBuilder initialValue() {
+				return new StringBuilder(HEADER_BUILDER_SIZE);
+			}
+		};
+
 		private final TreeLogger logger;
 		private final TreeLogger.Type normalLogLevel;
 
+		private final RequestLogRing<Entry> ring;
+		private final OverflowPolicy overflowPolicy;
+		private final AtomicLong dropped = new AtomicLong();
+		private final AtomicLong overflowed = new AtomicLong();
+
+		private volatile Thread consumer;
+		private volatile boolean consumerParked;
+
+		/**
+		 * Slow request mode: only errors and requests slower than the
+		 * threshold or the percentile are logged, everything else is counted.
+		 */
+		private long slowThresholdMillis = -1;
+		private double slowPercentile;
+		private LatencyHistogram latencies;
+		private final AtomicLong skipped = new AtomicLong();
+
+		/** Header names to log exclusively, or to leave out; null for all. */
+		private Set<String> includedHeaders;
+		private Set<String> excludedHeaders;
+
 		public JettyRequestLogger(TreeLogger logger,
 				TreeLogger.Type normalLogLevel) {
 			this.logger = logger;
 			assert (normalLogLevel != null);
 			this.normalLogLevel = normalLogLevel;
+			this.ring = null;
+			this.overflowPolicy = OverflowPolicy.DROP;
+		}
+
+		/**
+		 * Creates an asynchronous request logger: {@link #log} only queues a
+		 * snapshot of the request, and a single background thread formats
+		 * and writes the queued entries in batches.
+		 * 
+		 * @param queueCapacity the number of entries that can be pending
+		 * @param overflowPolicy what to do with entries that do not fit
+		 */
+		public JettyRequestLogger(TreeLogger logger,
+				TreeLogger.Type normalLogLevel, int queueCapacity,
+				OverflowPolicy overflowPolicy) {
+			this.logger = logger;
+			assert (normalLogLevel != null);
+			this.normalLogLevel = normalLogLevel;
+			this.ring = new RequestLogRing<Entry>(queueCapacity);
+			this.overflowPolicy = overflowPolicy;
+		}
+
+		/**
+		 * Only log the named headers (case insensitive).
+		 */
+		public void setIncludedHeaders(String... names) {
+			includedHeaders = toHeaderSet(names);
+		}
+
+		/**
+		 * Never log the named headers (case insensitive), e.g. cookies.
+		 */
+		public void setExcludedHeaders(String... names) {
+			excludedHeaders = toHeaderSet(names);
+		}
+
+		private static Set<String> toHeaderSet(String... names) {
+			if (names == null || names.length == 0) {
+				return null;
+			}
+			Set<String> set = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+			for (String name : names) {
+				set.add(name.trim());
+			}
+			return set;
+		}
+
+		/**
+		 * Switches to slow request mode. Errors, and requests that take at
+		 * least {@code thresholdMillis} or fall above {@code percentile} of the
+		 * latencies seen so far, are logged in full with headers and timing;
+		 * other requests are only counted.
+		 * 
+		 * @param thresholdMillis the latency threshold, or -1 for none
+		 * @param percentile the latency percentile, or 0 for none
+		 */
+		public void setSlowRequestMode(long thresholdMillis, double percentile) {
+			this.slowThresholdMillis = thresholdMillis;
+			this.slowPercentile = percentile;
+			this.latencies = new LatencyHistogram();
+		}
+
+		/**
+		 * @return the number of requests counted but not logged in slow
+		 *         request mode
+		 */
+		public long getSkipped() {
+			return skipped.get();
+		}
+
+		/**
+		 * @return the number of entries discarded because the queue was full
+		 */
+		public long getDropped() {
+			return dropped.get();
+		}
+
+		/**
+		 * @return the number of entries logged on the request thread because
+		 *         the queue was full
+		 */
+		public long getOverflowed() {
+			return overflowed.get();
+		}
+
+		@Override
+		protected void doStart() throws Exception {
+			super.doStart();
+			if (ring != null) {
+				consumer = new Thread(new Runnable() {
+					public void run() {
+						drain();
+					}
+				}, "JettyRequestLogger");
+				consumer.setDaemon(true);
+				consumer.start();
+			}
+		}
+
+		@Override
+		protected void doStop() throws Exception {
+			Thread thread = consumer;
+			if (thread != null) {
+				consumer = null;
+				LockSupport.unpark(thread);
+				thread.join(5000);
+			}
+			if (latencies != null) {
+				logger.log(TreeLogger.DEBUG, skipped.get() + " of "
+						+ latencies.getCount()
+						+ " requests were fast and not logged; p99 latency "
+						+ latencies.getPercentile(99) / 1000 + " ms");
+			}
+			if (dropped.get() > 0 || overflowed.get() > 0) {
+				logger.log(TreeLogger.WARN, "Request log queue of "
+						+ ring.capacity() + " entries overflowed: "
+						+ dropped.get() + " entries dropped, "
+						+ overflowed.get() + " logged synchronously");
+			}
+			super.doStop();
 		}
 
 		/**
 		 * Log an HTTP request/response to TreeLogger.
 		 */
 		public void log(Request request, Response response) {
+			Entry entry = capture(request, response);
+			if (entry == null) {
+				return;
+			}
+			if (ring == null || consumer == null) {
+				write(entry);
+			} else if (ring.offer(entry)) {
+				if (consumerParked) {
+					LockSupport.unpark(consumer);
+				}
+			} else if (overflowPolicy == OverflowPolicy.CALLER_RUNS) {
+				overflowed.incrementAndGet();
+				write(entry);
+			} else {
+				dropped.incrementAndGet();
+			}
+		}
+
+		/**
+		 * @return the entry to log, or null if the logger would discard it
+		 */
+		protected Entry capture(Request request, Response response) {
 			int status = response.getStatus();
 			if (status < 0) {
 				// Copied from NCSARequestLog
@@ -104,55 +360,137 @@ public class JettyLauncher extends ServletContainerLauncher {
 				logHeaders = TreeLogger.DEBUG;
 			}
 
-			String userString = request.getRemoteUser();
+			long latencyMillis = -1;
+			if (latencies != null) {
+				latencyMillis = Math.max(0, System.currentTimeMillis()
+						- request.getTimeStamp());
+				if (!isSlowOrFailed(status, logStatus, latencyMillis)) {
+					skipped.incrementAndGet();
+					return null;
+				}
+				// Worth a look: log everything we have at the same level.
+				if (status < 400) {
+					logStatus = TreeLogger.INFO;
+				}
+				logHeaders = logStatus;
+			}
+
+			if (!logger.isLoggable(logStatus)) {
+				return null;
+			}
+			String headers = null;
+			if (logger.isLoggable(logHeaders)) {
+				StringBuilder builder = headerBuilder.get();
+				builder.setLength(0);
+				builder.append("Request headers");
+				append(builder, request.getHttpFields());
+				builder.append("\nResponse headers");
+				append(builder, response.getHttpFields());
+				headers = builder.toString();
+				if (builder.capacity() > HEADER_BUILDER_MAX_SIZE) {
+					headerBuilder.remove();
+				}
+			}
+			return new Entry(status, logStatus, logHeaders,
+					request.getMethod(), String.valueOf(request.getUri()),
+					request.getRemoteUser(), request.getRemoteHost(),
+					response.getContentCount(), headers, latencyMillis);
+		}
+
+		boolean isSlowOrFailed(int status, TreeLogger.Type logStatus,
+				long latencyMillis) {
+			latencies.record(latencyMillis * 1000);
+			// The favicon 404 is demoted to TRACE and not a failure.
+			if (status >= 400 && logStatus != TreeLogger.TRACE) {
+				return true;
+			}
+			if (slowThresholdMillis >= 0 && latencyMillis >= slowThresholdMillis) {
+				return true;
+			}
+			// Wait for a few samples before trusting the percentile.
+			return slowPercentile > 0 && latencies.getCount() >= 100
+					&& latencyMillis * 1000 >= latencies.getPercentile(slowPercentile);
+		}
+
+		private void append(StringBuilder builder, HttpFields httpFields) {
+			for (int i = 0; i < httpFields.size(); i++) {
+				HttpField headerField = httpFields.getField(i);
+				if (headerField == null) {
+					continue;
+				}
+				String name = headerField.getName();
+				if ((includedHeaders != null && !includedHeaders.contains(name))
+						|| (excludedHeaders != null && excludedHeaders.contains(name))) {
+					continue;
+				}
+				builder.append("\n  ").append(name).append(": ")
+						.append(headerField.getValue());
+			}
+		}
+
+		/**
+		 * Formats an entry into the TreeLogger.
+		 */
+		protected void write(Entry entry) {
+			String userString = entry.remoteUser;
 			if (userString == null) {
 				userString = "";
 			} else {
 				userString += "@";
 			}
 			String bytesString = "";
-			if (response.getContentCount() > 0) {
-				bytesString = " " + response.getContentCount() + " bytes";
-			}
-			if (logger.isLoggable(logStatus)) {
-				TreeLogger branch = logger.branch(logStatus, String
-						.valueOf(status)
-						+ " - "
-						+ request.getMethod()
-						+ ' '
-						+ request.getUri()
-						+ " ("
-						+ userString
-						+ request.getRemoteHost()
-						+ ')'
-						+ bytesString);
-				if (branch.isLoggable(logHeaders)) {
-					// Request headers
-					TreeLogger headers = branch.branch(logHeaders,
-							"Request headers");
-//					Iterator<Field> headerFields = request.getConnection()
-//							.getRequestFields().get
-//					while (headerFields.hasNext()) {
-//						Field headerField = headerFields.next();
-//						headers.log(logHeaders, headerField.getName() + ": "
-//								+ headerField.getValue());
-//					}
-					//HttpFields httpFields = request.getConnection().getRequestFields();
-					HttpFields httpFields = request.getHttpFields();
-					for (int i = 0; i < httpFields.size(); i++) {
-						HttpField headerField = httpFields.getField(i);
-						if (headerField != null)
-							headers.log(logHeaders, headerField.getName() + ": " + headerField.getValue());
+			if (entry.contentCount > 0) {
+				bytesString = " " + entry.contentCount + " bytes";
+			}
+			if (entry.latencyMillis >= 0) {
+				bytesString += " in " + entry.latencyMillis + " ms";
+			}
+			TreeLogger branch = logger.branch(entry.logStatus, String
+					.valueOf(entry.status)
+					+ " - "
+					+ entry.method
+					+ ' '
+					+ entry.uri
+					+ " ("
+					+ userString
+					+ entry.remoteHost
+					+ ')'
+					+ bytesString);
+			if (entry.headers != null) {
+				branch.log(entry.logHeaders, entry.headers);
+			}
+		}
+
+		/**
+		 * Consumer loop: writes queued entries in batches until stopped, then
+		 * flushes what is left.
+		 */
+		private void drain() {
+			Entry[] batch = new Entry[BATCH_SIZE];
+			while (true) {
+				int count = ring.drainTo(batch, BATCH_SIZE);
+				for (int i = 0; i < count; i++) {
+					try {
+						write(batch[i]);
+					} catch (RuntimeException e) {
+						dropped.incrementAndGet();
 					}
-					// Response headers
-					headers = branch.branch(logHeaders, "Response headers");
-					httpFields = response.getHttpFields();
-					for (int i = 0; i < httpFields.size(); i++) {
-						HttpField headerField = httpFields.getField(i);
-						if (headerField != null)
-							headers.log(logHeaders, headerField.getName() + ": " + headerField.getValue());
+					batch[i] = null;
+				}
+				if (count > 0) {
+					continue;
+				}
+				if (consumer == null) {
+					if (ring.isEmpty()) {
+						return;
 					}
+					continue;
 				}
+				consumerParked = true;
+				if (ring.isEmpty()) {
+					LockSupport.parkNanos(this, 100000000L);
+				}
+				consumerParked = false;
 			}
 		}
 	}
@@ -168,7 +506,28 @@ public class JettyLauncher extends ServletContainerLauncher {
 	 */
 	public static class JettyTreeLogger implements Logger {
 
+		/**
+		 * Reused per thread so formatting does not allocate a builder per
+		 * message. Dropped if a huge message inflated it.
+		 */
+		private static final int BUFFER_MAX_SIZE = 16 * 1024;
+		private static final ThreadLocal<StringBuilder> buffers = new ThreadLocal<StringBuilder>() {
+			@Override
+			protected StringBuilder initialValue() {
+				return new StringBuilder(256);
+			}
+		};
+
 		private final TreeLogger logger;
+
+		/*
+		 * Snapshot of the enabled levels, checked before anything is
+		 * formatted. A TreeLogger's detail level is fixed once it is handed
+		 * out, and a new JettyTreeLogger is set whenever the branch changes.
+		 */
+		private final boolean spamEnabled;
+		private final boolean traceEnabled;
+		private final boolean warnEnabled;
 		
 		public JettyTreeLogger(TreeLogger logger) {
 			if (logger == null) {
@@ -176,21 +535,30 @@ public class JettyLauncher extends ServletContainerLauncher {
 			}
 			
 			this.logger = logger;
+			this.spamEnabled = logger.isLoggable(TreeLogger.SPAM);
+			this.traceEnabled = logger.isLoggable(TreeLogger.TRACE);
+			this.warnEnabled = logger.isLoggable(TreeLogger.WARN);
 		}
 
 		@Override
 		public void debug(Throwable thrown) {
-			logger.log(TreeLogger.SPAM, format(thrown));
+			if (spamEnabled) {
+				logger.log(TreeLogger.SPAM, format(thrown));
+			}
 		}
 
 		@Override
 		public void debug(String msg, Object... args) {
-			logger.log(TreeLogger.SPAM, format(msg, args));
+			if (spamEnabled) {
+				logger.log(TreeLogger.SPAM, format(msg, args));
+			}
 		}
 
 		@Override
 		public void debug(String msg, Throwable thrown) {
-			logger.log(TreeLogger.SPAM, msg, thrown);
+			if (spamEnabled) {
+				logger.log(TreeLogger.SPAM, msg, thrown);
+			}
 		}
 
 		@Override
@@ -205,22 +573,28 @@ public class JettyLauncher extends ServletContainerLauncher {
 
 		@Override
 		public void info(Throwable thrown) {
-			logger.log(TreeLogger.TRACE, format(thrown));
+			if (traceEnabled) {
+				logger.log(TreeLogger.TRACE, format(thrown));
+			}
 		}
 
 		@Override
 		public void info(String msg, Object... args) {
-			logger.log(TreeLogger.TRACE, format(msg, args));
+			if (traceEnabled) {
+				logger.log(TreeLogger.TRACE, format(msg, args));
+			}
 		}
 
 		@Override
 		public void info(String msg, Throwable thrown) {
-			logger.log(TreeLogger.TRACE, msg, thrown);
+			if (traceEnabled) {
+				logger.log(TreeLogger.TRACE, msg, thrown);
+			}
 		}
 
 		@Override
 		public boolean isDebugEnabled() {
-			return logger.isLoggable(TreeLogger.SPAM);
+			return spamEnabled;
 		}
 
 		@Override
@@ -228,17 +602,23 @@ public class JettyLauncher extends ServletContainerLauncher {
 
 		@Override
 		public void warn(Throwable thrown) {
-			logger.log(TreeLogger.WARN, format(thrown));
+			if (warnEnabled) {
+				logger.log(TreeLogger.WARN, format(thrown));
+			}
 		}
 
 		@Override
 		public void warn(String msg, Object... args) {
-			logger.log(TreeLogger.WARN, format(msg, args));
+			if (warnEnabled) {
+				logger.log(TreeLogger.WARN, format(msg, args));
+			}
 		}
 
 		@Override
 		public void warn(String msg, Throwable thrown) {
-			logger.log(TreeLogger.WARN, msg, thrown);
+			if (warnEnabled) {
+				logger.log(TreeLogger.WARN, msg, thrown);
+			}
 		}
 
 		/**
@@ -246,60 +626,78 @@ public class JettyLauncher extends ServletContainerLauncher {
 		 * @param args
 		 */
 		private String format(String msg, Object... args) {
-			StringBuilder buffer = new StringBuilder();
+			StringBuilder buffer = buffer();
 			format(buffer, msg, args);
 			
-			return buffer.toString();
+			return release(buffer);
 		}
 		
 		/**
 		 * @param thrown
 		 */
 		private String format(Throwable thrown) {
-			StringBuilder buffer = new StringBuilder();
+			StringBuilder buffer = buffer();
 			format(buffer, thrown);
 			
-			return buffer.toString();
+			return release(buffer);
+		}
+
+		private static StringBuilder buffer() {
+			StringBuilder buffer = buffers.get();
+			buffer.setLength(0);
+			return buffer;
+		}
+
+		private static String release(StringBuilder buffer) {
+			String result = buffer.toString();
+			if (buffer.capacity() > BUFFER_MAX_SIZE) {
+				buffers.remove();
+			}
+			return result;
 		}
 		
 		/**
-	     * Copied from org.eclipse.jetty.util.log.StdErrLog.
+	     * Adapted from org.eclipse.jetty.util.log.StdErrLog, escaping ranges of
+	     * the message in place instead of copying them out first.
 	     */
 		private void format(StringBuilder builder, String msg, Object... args)
 	    {
 	        msg = String.valueOf(msg); // Avoids NPE
-	        String braces = "{}";
 	        int start = 0;
 	        for (Object arg : args)
 	        {
-	            int bracesIndex = msg.indexOf(braces, start);
+	            int bracesIndex = msg.indexOf("{}", start);
 	            if (bracesIndex < 0)
 	            {
-	                escape(builder, msg.substring(start));
+	                escape(builder, msg, start, msg.length());
 	                builder.append(" ");
 	                builder.append(arg);
 	                start = msg.length();
 	            }
 	            else
 	            {
-	                escape(builder, msg.substring(start, bracesIndex));
+	                escape(builder, msg, start, bracesIndex);
 	                builder.append(String.valueOf(arg));
-	                start = bracesIndex + braces.length();
+	                start = bracesIndex + 2;
 	            }
 	        }
-	        escape(builder, msg.substring(start));
+	        escape(builder, msg, start, msg.length());
 	    }
 
 		/**
-	     * Copied from org.eclipse.jetty.util.log.StdErrLog.
+	     * Adapted from org.eclipse.jetty.util.log.StdErrLog. Appends runs
+	     * without control characters in one call.
 	     */
-	    private void escape(StringBuilder builder, String string)
+	    private void escape(StringBuilder builder, String string, int start, int end)
 	    {
-	        for (int i = 0; i < string.length(); ++i)
+	        int run = start;
+	        for (int i = start; i < end; ++i)
 	        {
 	            char c = string.charAt(i);
 	            if (Character.isISOControl(c))
 	            {
+	                builder.append(string, run, i);
+	                run = i + 1;
 	                if (c == '\n')
 	                    builder.append('|');
 	                else if (c == '\r')
@@ -307,9 +705,8 @@ public class JettyLauncher extends ServletContainerLauncher {
 	                else
 	                    builder.append('?');
 	            }
-	            else
-	                builder.append(c);
 	        }
+	        builder.append(string, run, end);
 	    }
 
 	    /**
@@ -343,7 +740,9 @@ public class JettyLauncher extends ServletContainerLauncher {
 
 		@Override
 		public void ignore(Throwable arg0) {
-			logger.log(TreeLogger.WARN, format(arg0));
+			if (warnEnabled) {
+				logger.log(TreeLogger.WARN, format(arg0));
+			}
 		}
 		
 	}
@@ -352,19 +751,45 @@ public class JettyLauncher extends ServletContainerLauncher {
 	 * The resulting {@link ServletContainer} this is launched.
 	 */
 	public static class JettyServletContainer extends ServletContainer {
+		private static final int MAX_LOGGED_CHANGES = 20;
+
 		private final int actualPort;
 		private final File appRootDir;
 		private final TreeLogger logger;
 		private final Server server;
-		private final WebAppContext wac;
+		private final WebAppChangeTracker changeTracker;
+		private final JettyLauncher launcher;
+		private final WebAppSwapHandler swapHandler;
+		private volatile WebAppContext wac;
 
 		public JettyServletContainer(TreeLogger logger, Server server,
 				WebAppContext wac, int actualPort, File appRootDir) {
+			this(logger, server, wac, actualPort, appRootDir, null, null);
+		}
+
+		/**
+		 * @param launcher creates the replacement web app on refresh
+		 * @param swapHandler the wrapper of {@code wac}; if not null, a
+		 *            refresh starts a replacement next to the live web app
+		 *            and swaps them, instead of restarting it in place
+		 */
+		public JettyServletContainer(TreeLogger logger, Server server,
+				WebAppContext wac, int actualPort, File appRootDir,
+				JettyLauncher launcher, WebAppSwapHandler swapHandler) {
 			this.logger = logger;
 			this.server = server;
 			this.wac = wac;
 			this.actualPort = actualPort;
 			this.appRootDir = appRootDir;
+			this.launcher = launcher;
+			this.swapHandler = swapHandler;
+			if (Boolean.getBoolean(PROPERTY_RELOAD_CHANGES_ONLY)) {
+				changeTracker = new WebAppChangeTracker(appRootDir,
+						Long.getLong(PROPERTY_RELOAD_QUIET_MILLIS, 200));
+				changeTracker.start();
+			} else {
+				changeTracker = null;
+			}
 		}
 
 		@Override
@@ -374,15 +799,63 @@ public class JettyLauncher extends ServletContainerLauncher {
 
 		@Override
 		public void refresh() throws UnableToCompleteException {
+			WebAppChangeTracker.Changes changes = null;
+			if (changeTracker != null) {
+				try {
+					changes = changeTracker.scan();
+				} catch (Exception e) {
+					logger.log(TreeLogger.WARN, "Unable to tell what changed in "
+							+ appRootDir.getAbsolutePath() + ", reloading", e);
+				}
+				if (changes != null && changes.isEmpty()) {
+					logger.log(TreeLogger.INFO, "Nothing changed in "
+							+ appRootDir.getAbsolutePath() + ", skipping reload");
+					return;
+				}
+			}
+
 			String msg = "Reloading web app to reflect changes in "
 					+ appRootDir.getAbsolutePath();
 			TreeLogger branch = logger.branch(TreeLogger.INFO, msg);
+			if (changes != null) {
+				logChanges(branch, changes.getFiles());
+			}
 			// Temporarily log Jetty on the branch.
 			Log.setLog(new JettyTreeLogger(branch));
 			try {
-				wac.stop();
-				wac.start();
+				if (swapHandler != null && canSwap(branch)) {
+					swap(branch);
+				} else if (launcher != null && launcher.readinessHandler != null) {
+					// Answer 503 instead of failing while the web app restarts.
+					launcher.readinessHandler.setReadiness(ReadinessHandler.Readiness.STARTING);
+					long start = System.nanoTime();
+					wac.stop();
+					wac.start();
+					launcher.readinessHandler.addPhase("webapp", millisSince(start));
+					if (!wac.isAvailable()) {
+						launcher.readinessHandler.setReadiness(ReadinessHandler.Readiness.FAILED);
+						throw new IllegalStateException("The web app is unavailable");
+					}
+					launcher.markReady(branch);
+				} else {
+					// Nothing holds requests back here, so the warm-up runs
+					// alongside the first real ones.
+					wac.stop();
+					wac.start();
+					if (launcher != null) {
+						launcher.warmUp(branch);
+					}
+				}
+				if (changes != null) {
+					changeTracker.commit(changes);
+				}
 				branch.log(TreeLogger.INFO, "Reload completed successfully");
+				if (launcher != null && launcher.leakTracker != null) {
+					String heapDumpDir = System.getProperty(PROPERTY_LEAKS_HEAP_DUMP);
+					launcher.leakTracker.report(branch,
+							Boolean.getBoolean(PROPERTY_LEAKS_ROOTS),
+							heapDumpDir == null ? null : new File(heapDumpDir));
+				}
 			} catch (Exception e) {
 				branch.log(TreeLogger.ERROR,
 						"Unable to restart embedded Jetty server", e);
@@ -393,6 +866,86 @@ public class JettyLauncher extends ServletContainerLauncher {
 			}
 		}
 
+		/**
+		 * Starts a new web app next to the live one, switches requests over
+		 * once it is up, and stops the old one after its requests are done.
+		 * The live web app keeps serving if the new one fails to start.
+		 */
+		private void swap(TreeLogger branch) throws Exception {
+			WebAppContext next = launcher.newWebAppContext(logger, appRootDir);
+			if (wac instanceof WebAppContextWithReload
+					&& next instanceof WebAppContextWithReload) {
+				((WebAppContextWithReload) next)
+						.inheritFrom((WebAppContextWithReload) wac);
+			}
+			next.setServer(server);
+			next.start();
+			if (!next.isAvailable()) {
+				next.stop();
+				throw new IllegalStateException(
+						"The new web app is unavailable, keeping the live one");
+			}
+			swapHandler.stage(next);
+			launcher.warmUp(branch);
+
+			WebAppContext old = wac;
+			swapHandler.swap(next);
+			wac = next;
+			branch.log(TreeLogger.TRACE, "Switched requests to the new web app");
+
+			if (!swapHandler.awaitRetired(Long.getLong(
+					PROPERTY_RELOAD_DRAIN_MILLIS, DEFAULT_RELOAD_DRAIN_MILLIS))) {
+				branch.log(TreeLogger.WARN,
+						"Stopping the old web app with requests still active");
+			}
+			old.stop();
+		}
+
+		/**
+		 * Tells whether the live web app loads its own
+		 * {@link #WEB_APP_SINGLETONS}. If one comes from a ClassLoader that
+		 * outlives the web app, such as the system ClassLoader, a second web
+		 * app would take it over, and stopping the old one would shut down
+		 * the new one's Weld container or bus.
+		 */
+		private boolean canSwap(TreeLogger branch) {
+			ClassLoader loader = wac.getClassLoader();
+			if (loader == null) {
+				return true;
+			}
+			ClassLoader library = wac instanceof WebAppContextWithReload
+					? ((WebAppContextWithReload) wac).libraryClassLoader : null;
+			for (String name : WEB_APP_SINGLETONS) {
+				Class<?> singleton;
+				try {
+					singleton = Class.forName(name, false, loader);
+				} catch (ClassNotFoundException e) {
+					continue;
+				}
+				ClassLoader owner = singleton.getClassLoader();
+				if (owner != loader && (owner != library || library == null)) {
+					branch.log(TreeLogger.INFO, "Restarting the web app in place: "
+							+ name + " is loaded from " + owner
+							+ ", which the old and new web app would share");
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void logChanges(TreeLogger branch, List<String> files) {
+			TreeLogger changed = branch.branch(TreeLogger.INFO, files.size()
+					+ " changed files");
+			int shown = Math.min(files.size(), MAX_LOGGED_CHANGES);
+			for (int i = 0; i < shown; i++) {
+				changed.log(TreeLogger.INFO, files.get(i));
+			}
+			if (shown < files.size()) {
+				changed.log(TreeLogger.INFO, "... and "
+						+ (files.size() - shown) + " more");
+			}
+		}
+
 		@Override
 		public void stop() throws UnableToCompleteException {
 			TreeLogger branch = logger.branch(TreeLogger.INFO,
@@ -428,17 +981,225 @@ public class JettyLauncher extends ServletContainerLauncher {
 		
 		private static final org.slf4j.Logger consoleLog = LoggerFactory.getLogger(WebAppContext.class);
 
+		/**
+		 * Part of every class name Weld generates for a proxy.
+		 */
+		private static final String WELD_PROXY_MARKER = "_$$_Weld";
+
 		/**
 		 * Specialized {@link WebAppClassLoader} that allows outside resources
 		 * to be brought in dynamically from the system path. A warning is
 		 * issued when this occurs.
 		 */
-		private class WebAppClassLoaderExtension extends WebAppClassLoader {
+		class WebAppClassLoaderExtension extends WebAppClassLoader {
 
 			private static final String META_INF_SERVICES = "META-INF/services/";
 
-			public WebAppClassLoaderExtension() throws IOException {
-				super(bootStrapOnlyClassLoader, WebAppContextWithReload.this);
+			/**
+			 * Marks a name the system ClassLoader does not know in the lookup
+			 * caches.
+			 */
+			private final Object NOT_FOUND = new Object();
+
+			/*
+			 * Lookup caches, scoped to the lifetime of this ClassLoader. The
+			 * system classpath does not change while the web app runs, so
+			 * both hits and misses are remembered.
+			 */
+			private final ConcurrentMap<String, Boolean> systemPaths = new ConcurrentHashMap<String, Boolean>();
+			private final ConcurrentMap<String, Object> systemResources = new ConcurrentHashMap<String, Object>();
+			private final ConcurrentMap<String, Object> systemClasses = new ConcurrentHashMap<String, Object>();
+
+			private final AtomicLong cacheHits = new AtomicLong();
+			private final AtomicLong systemLookups = new AtomicLong();
+			private final AtomicLong systemLookupNanos = new AtomicLong();
+			private final AtomicLong fallbacks = new AtomicLong();
+			private final AtomicLong fallbackNanos = new AtomicLong();
+			private final AtomicLong proxiesGenerated = new AtomicLong();
+
+			/**
+			 * Classpath entries added from the system classpath, guarded by
+			 * itself.
+			 */
+			private final Set<String> addedClassPath = new HashSet<String>();
+
+			public WebAppClassLoaderExtension(ClassLoader parent) throws IOException {
+				super(parent, WebAppContextWithReload.this);
+			}
+
+			/**
+			 * Skips {@code WEB-INF/lib} when a {@link LibraryClassLoader}
+			 * parent already holds the jars.
+			 */
+			@Override
+			public void addJars(Resource lib) {
+				if (getParent() instanceof LibraryClassLoader) {
+					return;
+				}
+				super.addJars(lib);
+			}
+
+			/**
+			 * Same delegation as {@link WebAppClassLoader#loadClass(String, boolean)},
+			 * except that a class this ClassLoader already knows is returned
+			 * without taking its lock. Weld bootstrap and the first requests
+			 * after a reload ask for the same classes from many threads.
+			 * <p/>
+			 * Anything else is loaded with the whole ClassLoader locked, as
+			 * Jetty does. Jetty 9.0's {@link WebAppClassLoader} is not
+			 * registered as parallel capable, so neither can this be, and
+			 * the JVM holds the same lock while it resolves references and
+			 * defines classes. A finer lock taken first would deadlock
+			 * against it.
+			 */
+			@Override
+			protected Class<?> loadClass(String name, boolean resolve)
+					throws ClassNotFoundException {
+				Class<?> loaded = findLoadedClass(name);
+				if (loaded != null) {
+					if (resolve) {
+						resolveClass(loaded);
+					}
+					return loaded;
+				}
+				if (isWeldProxyName(name) && getParent() instanceof LibraryClassLoader) {
+					Class<?> proxy = loadWeldProxy(name, resolve);
+					if (proxy != null) {
+						return proxy;
+					}
+				}
+				synchronized (this) {
+					Class<?> c = findLoadedClass(name);
+					ClassNotFoundException ex = null;
+					boolean triedParent = false;
+					boolean systemClass = WebAppContextWithReload.this
+							.isSystemClass(name);
+					boolean serverClass = WebAppContextWithReload.this
+							.isServerClass(name);
+					if (systemClass && serverClass) {
+						return null;
+					}
+
+					ClassLoader parent = getParent();
+					if (c == null && parent != null
+							&& (WebAppContextWithReload.this.isParentLoaderPriority() || systemClass)
+							&& !serverClass) {
+						triedParent = true;
+						try {
+							c = parent.loadClass(name);
+						} catch (ClassNotFoundException e) {
+							ex = e;
+						}
+					}
+
+					if (c == null) {
+						try {
+							c = findClass(name);
+						} catch (ClassNotFoundException e) {
+							ex = e;
+						}
+					}
+
+					if (c == null && parent != null && !triedParent
+							&& !serverClass) {
+						c = parent.loadClass(name);
+					}
+
+					if (c == null) {
+						throw ex != null ? ex : new ClassNotFoundException(name);
+					}
+					if (resolve) {
+						resolveClass(c);
+					}
+					return c;
+				}
+			}
+
+			/**
+			 * Weld defines its proxies in the bean's own ClassLoader after
+			 * asking it for the proxy by name. In layered mode, the classes
+			 * already defined here or in the library layer are looked at, and
+			 * a proxy found in neither and on no classpath is reported
+			 * missing at once, instead of going through the system classpath
+			 * fallback.
+			 *
+			 * @return the proxy, or null if it is on a classpath and must be
+			 *         loaded the usual way
+			 */
+			private Class<?> loadWeldProxy(String name, boolean resolve)
+					throws ClassNotFoundException {
+				LibraryClassLoader library = (LibraryClassLoader) getParent();
+				synchronized (this) {
+					Class<?> c = findLoadedClass(name);
+					if (c == null) {
+						c = library.findDefinedProxy(name);
+					}
+					if (c == null) {
+						String resource = name.replace('.', '/') + ".class";
+						if (super.findResource(resource) != null
+								|| library.findResource(resource) != null
+								|| isOnSystemClassPath(resource)) {
+							return null;
+						}
+						proxiesGenerated.incrementAndGet();
+						throw new ClassNotFoundException(name);
+					}
+					if (resolve) {
+						resolveClass(c);
+					}
+					return c;
+				}
+			}
+
+			/**
+			 * Adds the classpath entries earlier generations had to learn
+			 * from the system classpath, before any class is loaded.
+			 */
+			void seedClassPath(Collection<String> classPathURLs) {
+				synchronized (addedClassPath) {
+					for (String classPathURL : classPathURLs) {
+						if (addedClassPath.contains(classPathURL)) {
+							continue;
+						}
+						try {
+							addClassPath(classPathURL);
+							addedClassPath.add(classPathURL);
+						} catch (IOException e) {
+							logger.log(TreeLogger.DEBUG,
+									"Skipping remembered classpath entry '"
+											+ classPathURL + '\'', e);
+						}
+					}
+				}
+			}
+
+			/**
+			 * Logs how often and for how long this ClassLoader had to ask the
+			 * system ClassLoader, and how often the caches saved it the trip.
+			 */
+			void logLookupStats(TreeLogger logger) {
+				if (!logger.isLoggable(TreeLogger.TRACE)) {
+					return;
+				}
+				logger.log(TreeLogger.TRACE, "Web app class loader: "
+						+ systemLookups.get() + " system classpath lookups in "
+						+ TimeUnit.NANOSECONDS.toMillis(systemLookupNanos.get())
+						+ " ms, " + cacheHits.get() + " served from cache, "
+						+ fallbacks.get() + " fallbacks to the system classpath in "
+						+ TimeUnit.NANOSECONDS.toMillis(fallbackNanos.get())
+						+ " ms");
+				long reused = 0;
+				long generated = proxiesGenerated.get();
+				if (getParent() instanceof LibraryClassLoader) {
+					LibraryClassLoader library = (LibraryClassLoader) getParent();
+					reused = library.proxiesReused.getAndSet(0);
+					generated += library.proxiesGenerated.getAndSet(0);
+				}
+				if (reused + generated > 0) {
+					logger.log(TreeLogger.TRACE, "Weld proxy classes: " + reused
+							+ " reused from the library layer, " + generated
+							+ " generated");
+				}
 			}
 
 			@Override
@@ -452,8 +1213,9 @@ public class JettyLauncher extends ServletContainerLauncher {
 
 				// For a system path, load from the outside world.
 				URL found;
-				if (isSystemPath(checkName)) {
-					found = systemClassLoader.getResource(name);
+				boolean systemPath = isSystemPath(checkName);
+				if (systemPath) {
+					found = lookupSystemResource(name);
 					if (found != null) {
 						return found;
 					}
@@ -465,8 +1227,9 @@ public class JettyLauncher extends ServletContainerLauncher {
 					return found;
 				}
 
-				// See if the outside world has it.
-				found = systemClassLoader.getResource(name);
+				// See if the outside world has it. A system path was already
+				// looked up above, and the miss is cached.
+				found = systemPath ? null : lookupSystemResource(name);
 				if (found == null) {
 					return null;
 				}
@@ -488,17 +1251,16 @@ public class JettyLauncher extends ServletContainerLauncher {
 			 * in gwt-dev via embedded Tomcat, so we always hit this case.)
 			 */
 			public boolean isSystemPath(String name) {
-				name = name.replace('/', '.');
-				return !WebAppContextWithReload.this.isSystemClass(name)
-						|| name.startsWith("org.eclipse.jetty.servlet.")
-						//|| name.startsWith("javax.servlet.")
-						|| name.startsWith("org.eclipse.jetty.server.")
-						//|| name.startsWith("com.google.gwt.")
-//						|| name.startsWith("javax.servlet.")
-						|| name.startsWith("org.eclipse.jetty.plus.")
-//						|| name.startsWith("org.eclipse.jetty.util.")
-						|| name.startsWith("org.apache.jasper.")
-						|| name.startsWith("org.apache.xerces.");
+				Boolean cached = systemPaths.get(name);
+				if (cached == null) {
+					cached = computeSystemPath(name);
+					systemPaths.putIfAbsent(name, cached);
+				}
+				return cached;
+			}
+
+			private boolean computeSystemPath(String name) {
+				return isSystemPathName(name);
 			}
 
 			@Override
@@ -506,9 +1268,9 @@ public class JettyLauncher extends ServletContainerLauncher {
 					throws ClassNotFoundException {
 				// For system path, always prefer the outside world.
 				if (isSystemPath(name)) {
-					try {
-						return systemClassLoader.loadClass(name);
-					} catch (ClassNotFoundException e) {
+					Class<?> found = lookupSystemClass(name);
+					if (found != null) {
+						return found;
 					}
 				}
 
@@ -523,7 +1285,7 @@ public class JettyLauncher extends ServletContainerLauncher {
 
 				// See if the outside world has a URL for it.
 				String resourceName = name.replace('.', '/') + ".class";
-				URL found = systemClassLoader.getResource(resourceName);
+				URL found = lookupSystemResource(resourceName);
 				if (found == null) {
 					return null;
 				}
@@ -540,11 +1302,66 @@ public class JettyLauncher extends ServletContainerLauncher {
 				return super.findClass(name);
 			}
 
-			private boolean addContainingClassPathEntry(String warnMessage,
-					URL resource, String resourceName) {
-				TreeLogger.Type logLevel = (System
-						.getProperty(PROPERTY_NOWARN_WEBAPP_CLASSPATH) == null) ? TreeLogger.WARN
-						: TreeLogger.DEBUG;
+			/**
+			 * Cached {@code systemClassLoader.getResource(name)}.
+			 */
+			private URL lookupSystemResource(String name) {
+				Object cached = systemResources.get(name);
+				if (cached != null) {
+					cacheHits.incrementAndGet();
+					return cached == NOT_FOUND ? null : (URL) cached;
+				}
+				long start = System.nanoTime();
+				URL found = systemClassLoader.getResource(name);
+				systemLookupNanos.addAndGet(System.nanoTime() - start);
+				systemLookups.incrementAndGet();
+				systemResources.putIfAbsent(name, found == null ? NOT_FOUND
+						: found);
+				return found;
+			}
+
+			/**
+			 * Cached {@code systemClassLoader.loadClass(name)}.
+			 * 
+			 * @return null if the system ClassLoader cannot load the class
+			 */
+			private Class<?> lookupSystemClass(String name) {
+				Object cached = systemClasses.get(name);
+				if (cached != null) {
+					cacheHits.incrementAndGet();
+					return cached == NOT_FOUND ? null : (Class<?>) cached;
+				}
+				long start = System.nanoTime();
+				Class<?> found;
+				try {
+					found = systemClassLoader.loadClass(name);
+				} catch (ClassNotFoundException e) {
+					found = null;
+				}
+				systemLookupNanos.addAndGet(System.nanoTime() - start);
+				systemLookups.incrementAndGet();
+				systemClasses.putIfAbsent(name, found == null ? NOT_FOUND
+						: found);
+				return found;
+			}
+
+			private boolean addContainingClassPathEntry(String warnMessage,
+					URL resource, String resourceName) {
+				long start = System.nanoTime();
+				try {
+					return addContainingClassPathEntry0(warnMessage, resource,
+							resourceName);
+				} finally {
+					fallbacks.incrementAndGet();
+					fallbackNanos.addAndGet(System.nanoTime() - start);
+				}
+			}
+
+			private boolean addContainingClassPathEntry0(String warnMessage,
+					URL resource, String resourceName) {
+				TreeLogger.Type logLevel = (System
+						.getProperty(PROPERTY_NOWARN_WEBAPP_CLASSPATH) == null) ? TreeLogger.WARN
+						: TreeLogger.DEBUG;
 				TreeLogger branch = logger.branch(logLevel, warnMessage);
 				String classPathURL;
 				String foundStr = resource.toExternalForm();
@@ -563,18 +1380,111 @@ public class JettyLauncher extends ServletContainerLauncher {
 									+ foundStr + '\'');
 					return false;
 				}
-				branch = branch.branch(logLevel, "Adding classpath entry '"
-						+ classPathURL
-						+ "' to the web app classpath for this session", null,
-						new InstalledHelpInfo("webAppClassPath.html"));
+				synchronized (addedClassPath) {
+					// Another thread may have added it since our lookup.
+					if (addedClassPath.contains(classPathURL)) {
+						return true;
+					}
+					branch = branch.branch(logLevel, "Adding classpath entry '"
+							+ classPathURL
+							+ "' to the web app classpath for this session", null,
+							new InstalledHelpInfo("webAppClassPath.html"));
+					try {
+						addClassPath(classPathURL);
+						addedClassPath.add(classPathURL);
+						learnClassPath(classPathURL);
+						return true;
+					} catch (IOException e) {
+						branch.log(TreeLogger.ERROR, "Failed add container URL: '"
+								+ classPathURL + '\'', e);
+						return false;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Long-lived parent of the web app ClassLoader holding the
+		 * {@code WEB-INF/lib} jars, so that a reload only re-reads
+		 * {@code WEB-INF/classes}. Kept for as long as no jar is added,
+		 * removed or modified. Delegates like
+		 * {@link WebAppClassLoaderExtension}, except that classes missing from
+		 * the jars are taken straight from the system ClassLoader.
+		 */
+		private class LibraryClassLoader extends URLClassLoader {
+
+			private final String key;
+
+			/*
+			 * Weld proxies of library beans are defined here and outlive the
+			 * web app generation that generated them; counted per generation.
+			 * Proxies generated in the web app ClassLoader are counted there.
+			 */
+			private final AtomicLong proxiesReused = new AtomicLong();
+			private final AtomicLong proxiesGenerated = new AtomicLong();
+
+			LibraryClassLoader(URL[] jars, String key) {
+				super(jars, bootStrapOnlyClassLoader);
+				this.key = key;
+			}
+
+			/**
+			 * Answers Weld's lookup of a proxy it may already have generated
+			 * for an earlier generation. A proxy that is neither defined here
+			 * nor on a classpath is reported missing without searching the
+			 * system classpath for the class.
+			 */
+			@Override
+			protected Class<?> loadClass(String name, boolean resolve)
+					throws ClassNotFoundException {
+				if (!isWeldProxyName(name)) {
+					return super.loadClass(name, resolve);
+				}
+				Class<?> c = findDefinedProxy(name);
+				if (c == null) {
+					String resource = name.replace('.', '/') + ".class";
+					if (findResource(resource) != null || isOnSystemClassPath(resource)) {
+						return super.loadClass(name, resolve);
+					}
+					proxiesGenerated.incrementAndGet();
+					throw new ClassNotFoundException(name);
+				}
+				if (resolve) {
+					resolveClass(c);
+				}
+				return c;
+			}
+
+			/**
+			 * @return the proxy of that name defined here by an earlier
+			 *         generation, or null
+			 */
+			Class<?> findDefinedProxy(String name) {
+				Class<?> c = findLoadedClass(name);
+				if (c != null) {
+					proxiesReused.incrementAndGet();
+				}
+				return c;
+			}
+
+			@Override
+			protected Class<?> findClass(String name)
+					throws ClassNotFoundException {
+				if (isSystemPathName(name)) {
+					try {
+						return systemClassLoader.loadClass(name);
+					} catch (ClassNotFoundException e) {
+					}
+				}
+
 				try {
-					addClassPath(classPathURL);
-					return true;
-				} catch (IOException e) {
-					branch.log(TreeLogger.ERROR, "Failed add container URL: '"
-							+ classPathURL + '\'', e);
-					return false;
+					return super.findClass(name);
+				} catch (ClassNotFoundException e) {
+					if (WebAppContextWithReload.this.isServerClass(name)) {
+						throw e;
+					}
 				}
+				return systemClassLoader.loadClass(name);
 			}
 		}
 
@@ -589,6 +1499,14 @@ public class JettyLauncher extends ServletContainerLauncher {
 
 		private final TreeLogger logger;
 
+		/**
+		 * Compiled once per launcher and shared by every context and class
+		 * loader generation.
+		 */
+		private static final SystemPathMatcher systemPathMatcher = new SystemPathMatcher(
+				System.getProperty(PROPERTY_SYSTEM_PATHS,
+						SystemPathMatcher.DEFAULT_PREFIXES));
+
 		/**
 		 * In the usual case of launching {@link com.google.gwt.dev.DevMode},
 		 * this will always by the system app ClassLoader.
@@ -596,12 +1514,54 @@ public class JettyLauncher extends ServletContainerLauncher {
 		private final ClassLoader systemClassLoader = Thread.currentThread()
 				.getContextClassLoader();
 
-		private WebAppContextWithReload(TreeLogger logger, String webApp,
+		/**
+		 * Tracks the class loaders this context retires, or null.
+		 */
+		private ClassLoaderLeakTracker leakTracker;
+
+		/**
+		 * The current library layer, or null when
+		 * {@link JettyLauncher#PROPERTY_LAYERED_CLASSLOADER} is not set.
+		 */
+		private LibraryClassLoader libraryClassLoader;
+
+		/**
+		 * Classpath entries the web app had to take from the system
+		 * classpath, in the order they were learned. Guarded by itself.
+		 */
+		private final Set<String> learnedClassPath = new LinkedHashSet<String>();
+
+		/**
+		 * Where {@link #learnedClassPath} is kept between launches, or null.
+		 */
+		private final File learnedClassPathFile;
+
+		/**
+		 * Takes over what {@code previous} learned about the classpath, when
+		 * it is replaced by this context instead of being restarted. The
+		 * library layer is not taken over: both contexts run side by side for
+		 * a while, and each needs its own statics in the library jars.
+		 */
+		private void inheritFrom(WebAppContextWithReload previous) {
+			synchronized (previous.learnedClassPath) {
+				synchronized (learnedClassPath) {
+					learnedClassPath.addAll(previous.learnedClassPath);
+				}
+			}
+		}
+
+		WebAppContextWithReload(TreeLogger logger, String webApp,
 				String contextPath) {
 			super(webApp, contextPath);
 			consoleLog.info(String.format("logger=%s, webApp=%s, contextPath=%s", logger, webApp, contextPath));
 			this.logger = logger;
 
+			String learnedFile = System.getProperty(PROPERTY_LEARNED_CLASSPATH_FILE);
+			learnedClassPathFile = learnedFile == null ? null : new File(learnedFile);
+			if (learnedClassPathFile != null && learnedClassPathFile.isFile()) {
+				readLearnedClassPath();
+			}
+
 			// Prevent file locking on Windows; pick up file changes.
 			getInitParams().put(
 					"org.eclipse.jetty.servlet.Default.useFileMappedBuffer",
@@ -613,15 +1573,176 @@ public class JettyLauncher extends ServletContainerLauncher {
 
 		@Override
 		protected void doStart() throws Exception {
-			setClassLoader(new WebAppClassLoaderExtension());
+			ClassLoader parent = bootStrapOnlyClassLoader;
+			if (Boolean.getBoolean(PROPERTY_LAYERED_CLASSLOADER)) {
+				LibraryClassLoader library = getLibraryClassLoader();
+				if (library != null) {
+					parent = library;
+				}
+			}
+			WebAppClassLoaderExtension classLoader = newClassLoader(parent);
+			setClassLoader(classLoader);
 			super.doStart();
+			classLoader.logLookupStats(logger);
 			consoleLog.info("Started Jetty version: {}", Server.getVersion());			
 		}
 
+		/**
+		 * Creates the class loader for the next generation, seeded with the
+		 * classpath entries learned so far.
+		 */
+		WebAppClassLoaderExtension newClassLoader(ClassLoader parent)
+				throws IOException {
+			WebAppClassLoaderExtension classLoader = new WebAppClassLoaderExtension(parent);
+			List<String> learned;
+			synchronized (learnedClassPath) {
+				learned = new ArrayList<String>(learnedClassPath);
+			}
+			if (!learned.isEmpty()) {
+				logger.log(TreeLogger.TRACE, "Adding " + learned.size()
+						+ " classpath entries learned from the system classpath");
+				classLoader.seedClassPath(learned);
+			}
+			return classLoader;
+		}
+
+		/**
+		 * Matches the names of the proxy and subclass classes Weld generates.
+		 */
+		private static boolean isWeldProxyName(String name) {
+			return name.indexOf(WELD_PROXY_MARKER) >= 0;
+		}
+
+		/**
+		 * Whether a class file is on the system classpath; Weld proxies
+		 * normally are not, but one that is must still be loaded from it.
+		 */
+		private boolean isOnSystemClassPath(String resource) {
+			return systemClassLoader.getResource(resource) != null;
+		}
+
+		/**
+		 * Matches the names the web app loads from the system classpath
+		 * first. Both checks take {@code /} and {@code .} separated names;
+		 * Jetty's {@link #isSystemClass(String)} normalizes them itself.
+		 */
+		private boolean isSystemPathName(String name) {
+			return systemPathMatcher.matches(name) || !isSystemClass(name);
+		}
+
+		/**
+		 * @return the library layer for the jars now in {@code WEB-INF/lib},
+		 *         reusing the current one if none changed, or null if there
+		 *         are no jars
+		 */
+		private LibraryClassLoader getLibraryClassLoader()
+				throws MalformedURLException {
+			File[] jars = new File(getWar(), "WEB-INF/lib")
+					.listFiles(new FilenameFilter() {
+						@Override
+						public boolean accept(File dir, String name) {
+							String lower = name.toLowerCase(Locale.ENGLISH);
+							return lower.endsWith(".jar") || lower.endsWith(".zip");
+						}
+					});
+			if (jars == null || jars.length == 0) {
+				libraryClassLoader = null;
+				return null;
+			}
+			Arrays.sort(jars);
+
+			StringBuilder key = new StringBuilder();
+			URL[] urls = new URL[jars.length];
+			for (int i = 0; i < jars.length; i++) {
+				key.append(jars[i].getAbsolutePath()).append('@')
+						.append(jars[i].lastModified()).append(';');
+				urls[i] = jars[i].toURI().toURL();
+			}
+
+			if (libraryClassLoader != null
+					&& libraryClassLoader.key.equals(key.toString())) {
+				logger.log(TreeLogger.TRACE, "Reusing the class loader for "
+						+ jars.length + " unchanged library jars");
+			} else {
+				logger.log(TreeLogger.TRACE, "Creating a class loader for "
+						+ jars.length + " library jars");
+				libraryClassLoader = new LibraryClassLoader(urls, key.toString());
+			}
+			return libraryClassLoader;
+		}
+
+		private void learnClassPath(String classPathURL) {
+			synchronized (learnedClassPath) {
+				if (learnedClassPath.add(classPathURL)
+						&& learnedClassPathFile != null) {
+					writeLearnedClassPath();
+				}
+			}
+		}
+
+		/**
+		 * Reads one URL per line, skipping file URLs that no longer exist.
+		 */
+		private void readLearnedClassPath() {
+			try {
+				BufferedReader reader = new BufferedReader(new InputStreamReader(
+						new FileInputStream(learnedClassPathFile), "UTF-8"));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						line = line.trim();
+						if (line.length() == 0) {
+							continue;
+						}
+						if (line.startsWith("file:")) {
+							try {
+								if (!new File(new URI(line)).exists()) {
+									continue;
+								}
+							} catch (Exception e) {
+								continue;
+							}
+						}
+						learnedClassPath.add(line);
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (IOException e) {
+				logger.log(TreeLogger.WARN, "Unable to read learned classpath from "
+						+ learnedClassPathFile, e);
+			}
+		}
+
+		/**
+		 * Called with {@link #learnedClassPath} held.
+		 */
+		private void writeLearnedClassPath() {
+			try {
+				Writer writer = new OutputStreamWriter(new FileOutputStream(
+						learnedClassPathFile), "UTF-8");
+				try {
+					for (String classPathURL : learnedClassPath) {
+						writer.write(classPathURL);
+						writer.write('\n');
+					}
+				} finally {
+					writer.close();
+				}
+			} catch (IOException e) {
+				logger.log(TreeLogger.WARN, "Unable to write learned classpath to "
+						+ learnedClassPathFile, e);
+			}
+		}
+
 		@Override
 		protected void doStop() throws Exception {
+			ClassLoader retiring = getClassLoader();
 			super.doStop();
 			setClassLoader(null);
+			if (leakTracker != null && retiring != null) {
+				leakTracker.retire(retiring);
+			}
 			consoleLog.info("Stopped Jetty instance!");
 		}
 	}
@@ -652,6 +1773,136 @@ public class JettyLauncher extends ServletContainerLauncher {
 	 */
 	private static final String PROPERTY_NOWARN_WEBAPP_CLASSPATH = "gwt.nowarn.webapp.classpath";
 
+	/**
+	 * System property with the comma separated package prefixes the web app
+	 * always loads from the system classpath, replacing the defaults of
+	 * {@link SystemPathMatcher#DEFAULT_PREFIXES}.
+	 */
+	private static final String PROPERTY_SYSTEM_PATHS = "errai.jetty.classloader.systemPaths";
+
+	/**
+	 * System property naming a file to remember, across launches, the
+	 * classpath entries the web app had to take from the system classpath.
+	 */
+	private static final String PROPERTY_LEARNED_CLASSPATH_FILE = "errai.jetty.classloader.learnedFile";
+
+	/**
+	 * System property to keep the {@code WEB-INF/lib} jars in a class loader
+	 * that survives reloads while the jars are unchanged.
+	 */
+	private static final String PROPERTY_LAYERED_CLASSLOADER = "errai.jetty.classloader.layered";
+
+	/**
+	 * System properties to only reload the web app when its classes, jars or
+	 * descriptors actually changed, once writes to them have paused for the
+	 * given number of milliseconds.
+	 */
+	private static final String PROPERTY_RELOAD_CHANGES_ONLY = "errai.jetty.reload.changesOnly";
+	private static final String PROPERTY_RELOAD_QUIET_MILLIS = "errai.jetty.reload.quietMillis";
+
+	/**
+	 * System properties to reload by starting a second web app next to the
+	 * live one and swapping them, and to bound how long the old one may
+	 * finish its active requests. The default outlasts the 20 seconds a
+	 * blocking Errai bus poll waits for messages.
+	 */
+	private static final String PROPERTY_RELOAD_SWAP = "errai.jetty.reload.swap";
+	private static final String PROPERTY_RELOAD_DRAIN_MILLIS = "errai.jetty.reload.drainMillis";
+	private static final long DEFAULT_RELOAD_DRAIN_MILLIS = 25000;
+
+	/**
+	 * Classes holding a web app's Weld container and Errai bus in statics.
+	 * Two web apps can only run side by side if each loads its own.
+	 */
+	private static final String[] WEB_APP_SINGLETONS = {
+			"org.jboss.weld.Container",
+			"org.jboss.errai.bus.server.service.ErraiServiceSingleton" };
+
+	/**
+	 * System properties to report leaked class loader generations and memory
+	 * growth after every reload, to look for what keeps the oldest leaked
+	 * generation alive, and to write a heap dump into the given directory
+	 * when a generation leaks.
+	 */
+	private static final String PROPERTY_LEAKS = "errai.jetty.leaks";
+	private static final String PROPERTY_LEAKS_ROOTS = "errai.jetty.leaks.roots";
+	private static final String PROPERTY_LEAKS_HEAP_DUMP = "errai.jetty.leaks.heapDump";
+
+	/**
+	 * System properties with the requests to replay against the web app
+	 * after it starts or reloads, before it is handed to clients (see
+	 * {@link WarmUp}), and how often to replay them.
+	 */
+	private static final String PROPERTY_WARMUP = "errai.jetty.warmup";
+	private static final String PROPERTY_WARMUP_ITERATIONS = "errai.jetty.warmup.iterations";
+
+	/**
+	 * System properties to bind the port before the web app starts, answering
+	 * 503 with the given Retry-After seconds until it is ready, and the path
+	 * of the readiness probe.
+	 */
+	private static final String PROPERTY_EARLY_BIND = "errai.jetty.earlyBind";
+	private static final String PROPERTY_READINESS_PATH = "errai.jetty.readiness.path";
+	private static final String PROPERTY_READINESS_RETRY_AFTER = "errai.jetty.readiness.retryAfter";
+
+	/**
+	 * System properties to size the worker pool of the embedded server. A
+	 * queue capacity of 0 (the default) leaves the job queue unbounded; any
+	 * positive value makes the pool reject work once the queue is full.
+	 */
+	private static final String PROPERTY_THREADS_MIN = "errai.jetty.threads.min";
+	private static final String PROPERTY_THREADS_MAX = "errai.jetty.threads.max";
+	private static final String PROPERTY_THREADS_IDLE_TIMEOUT = "errai.jetty.threads.idleTimeout";
+	private static final String PROPERTY_THREADS_QUEUE = "errai.jetty.threads.queue";
+	private static final String PROPERTY_THREADS_NAME = "errai.jetty.threads.name";
+
+	/**
+	 * System property to run every request on its own virtual thread instead
+	 * of a pooled platform thread. Ignored on JVMs without virtual threads.
+	 */
+	private static final String PROPERTY_THREADS_VIRTUAL = "errai.jetty.threads.virtual";
+
+	/**
+	 * System property to register {@link JettyWebSocketBusServlet} with the
+	 * web app, and the property naming its path element below the context
+	 * root (Errai's default is {@code in.erraiBusWebSocket}).
+	 */
+	private static final String PROPERTY_WEBSOCKET = "errai.jetty.websocket";
+	private static final String PROPERTY_WEBSOCKET_PATH = "errai.jetty.websocket.path";
+
+	/**
+	 * System properties to move request logging off the request threads: the
+	 * switch, the number of entries that may be pending, and the overflow
+	 * policy ({@code drop} or {@code caller}).
+	 */
+	private static final String PROPERTY_REQUESTLOG_ASYNC = "errai.jetty.requestlog.async";
+	private static final String PROPERTY_REQUESTLOG_QUEUE = "errai.jetty.requestlog.queue";
+	private static final String PROPERTY_REQUESTLOG_OVERFLOW = "errai.jetty.requestlog.overflow";
+
+	/**
+	 * System properties with comma separated header names to log exclusively,
+	 * or to leave out of the request log.
+	 */
+	private static final String PROPERTY_REQUESTLOG_HEADERS_INCLUDE = "errai.jetty.requestlog.headers.include";
+	private static final String PROPERTY_REQUESTLOG_HEADERS_EXCLUDE = "errai.jetty.requestlog.headers.exclude";
+
+	/**
+	 * System properties for slow request mode of the request log: a latency
+	 * threshold in milliseconds and/or a latency percentile. Setting either
+	 * turns the mode on.
+	 */
+	private static final String PROPERTY_REQUESTLOG_SLOW_MILLIS = "errai.jetty.requestlog.slow.millis";
+	private static final String PROPERTY_REQUESTLOG_SLOW_PERCENTILE = "errai.jetty.requestlog.slow.percentile";
+
+	/**
+	 * System properties to record per route latency and status metrics with
+	 * a {@link RequestMetricsHandler}: the switch, the route groups and the
+	 * path of the local JSON snapshot.
+	 */
+	private static final String PROPERTY_METRICS = "errai.jetty.metrics";
+	private static final String PROPERTY_METRICS_ROUTES = "errai.jetty.metrics.routes";
+	private static final String PROPERTY_METRICS_PATH = "errai.jetty.metrics.path";
+
 	static {
 		// Suppress spammy Jetty log initialization.
 		System.setProperty("org.mortbay.log.class", JettyNullLogger.class
@@ -675,6 +1926,22 @@ public class JettyLauncher extends ServletContainerLauncher {
 
 	private String bindAddress = null;
 
+	/**
+	 * Set when {@link #PROPERTY_LEAKS} is.
+	 */
+	private ClassLoaderLeakTracker leakTracker;
+
+	/**
+	 * Set when {@link #PROPERTY_WARMUP} is.
+	 */
+	private WarmUp warmUp;
+	private LocalConnector warmUpConnector;
+
+	/**
+	 * Set when {@link #PROPERTY_EARLY_BIND} is.
+	 */
+	private ReadinessHandler readinessHandler;
+
 	@Override
 	public String getName() {
 		return "Jetty";
@@ -699,6 +1966,7 @@ public class JettyLauncher extends ServletContainerLauncher {
 	@Override
 	public ServletContainer start(TreeLogger logger, int port, File appRootDir)
 			throws Exception {
+		long startedAt = System.nanoTime();
 		TreeLogger branch = logger.branch(TreeLogger.TRACE,
 				"Starting Jetty on port " + port, null);
 
@@ -710,7 +1978,11 @@ public class JettyLauncher extends ServletContainerLauncher {
 		// Turn off XML validation.
 		System.setProperty("org.mortbay.xml.XmlParser.Validating", "false");
 
-		Server server = new Server();
+		if (Boolean.getBoolean(PROPERTY_LEAKS)) {
+			leakTracker = new ClassLoaderLeakTracker();
+		}
+
+		Server server = new Server(getThreadPool(branch));
 		
 		ServerConnector connector = getConnector(server);
 		if (bindAddress != null) {
@@ -730,32 +2002,265 @@ public class JettyLauncher extends ServletContainerLauncher {
 		
 
 		// Create a new web app in the war directory.
-		WebAppContext wac = new WebAppContextWithReload(logger, appRootDir.getAbsolutePath(), "/");
-		//wac.setDescriptor(appRootDir.getAbsolutePath() + "/WEB-INF/web.xml");
-		wac.setConfigurationDiscovered(true);
-		
-		wac.setConfigurationClasses(__dftConfigurationClasses);
+		WebAppContext wac = newWebAppContext(logger, appRootDir);
 		
 //		javax.naming.Context t = (javax.naming.Context)new javax.naming.InitialContext().lookup("java:comp");
 //		listContext(t, "");
 
+		Handler appHandler = wac;
+		WebAppSwapHandler swapHandler = null;
+		if (Boolean.getBoolean(PROPERTY_RELOAD_SWAP)) {
+			swapHandler = new WebAppSwapHandler();
+			swapHandler.setHandler(wac);
+			appHandler = swapHandler;
+		}
+
+		Handler webApp = appHandler;
+		if (Boolean.getBoolean(PROPERTY_EARLY_BIND)) {
+			readinessHandler = new ReadinessHandler(System.getProperty(
+					PROPERTY_READINESS_PATH, "/_ready"), Integer.getInteger(
+					PROPERTY_READINESS_RETRY_AFTER, 5));
+			readinessHandler.setHandler(appHandler);
+			readinessHandler.setDeferChildStart(true);
+			appHandler = readinessHandler;
+		}
+
 		RequestLogHandler logHandler = new RequestLogHandler();
-		logHandler.setRequestLog(new JettyRequestLogger(logger,
-				getBaseLogLevel()));
-		logHandler.setHandler(wac);
+		logHandler.setRequestLog(createRequestLog(logger));
+		if (Boolean.getBoolean(PROPERTY_METRICS)) {
+			RequestMetricsHandler metricsHandler = new RequestMetricsHandler(
+					System.getProperty(PROPERTY_METRICS_ROUTES,
+							RequestMetricsHandler.DEFAULT_ROUTES),
+					System.getProperty(PROPERTY_METRICS_PATH, "/_metrics"));
+			metricsHandler.setHandler(appHandler);
+			logHandler.setHandler(metricsHandler);
+		} else {
+			logHandler.setHandler(appHandler);
+		}
 		server.setHandler(logHandler);
+
+		String warmUpSpec = System.getProperty(PROPERTY_WARMUP);
+		if (warmUpSpec != null) {
+			warmUp = new WarmUp(warmUpSpec, Integer.getInteger(
+					PROPERTY_WARMUP_ITERATIONS, 1));
+			warmUpConnector = WarmUp.newConnector(server);
+			server.addConnector(warmUpConnector);
+		}
+
+		long bindAt = System.nanoTime();
 		server.start();
 		server.setStopAtShutdown(true);
+		branch.log(TreeLogger.TRACE, "Connector settings in effect: "
+				+ ConnectorProfile.describe(connector));
+		if (readinessHandler != null) {
+			readinessHandler.addPhase("setup", TimeUnit.NANOSECONDS.toMillis(bindAt - startedAt));
+			readinessHandler.addPhase("bind", millisSince(bindAt));
+			startInBackground(logger, webApp, wac);
+		} else {
+			warmUp(branch);
+		}
 
 		// Now that we're started, log to the top level logger.
 		Log.setLog(new JettyTreeLogger(logger));
 
 		return new JettyServletContainer(logger, server, wac, connector
-				.getLocalPort(), appRootDir);
+				.getLocalPort(), appRootDir, this, swapHandler);
+	}
+
+	/**
+	 * Starts the web app after the port is bound, and marks it ready once it
+	 * has started and warmed up.
+	 */
+	private void startInBackground(final TreeLogger logger,
+			final Handler webApp, final WebAppContext wac) {
+		Thread thread = new Thread("errai-webapp-start") {
+			@Override
+			public void run() {
+				TreeLogger branch = logger.branch(TreeLogger.TRACE,
+						"Starting the web app in the background");
+				try {
+					long start = System.nanoTime();
+					webApp.start();
+					readinessHandler.addPhase("webapp", millisSince(start));
+					if (!wac.isAvailable()) {
+						readinessHandler.setReadiness(ReadinessHandler.Readiness.FAILED);
+						branch.log(TreeLogger.ERROR, "The web app is unavailable");
+						return;
+					}
+					markReady(branch);
+				} catch (Exception e) {
+					readinessHandler.setReadiness(ReadinessHandler.Readiness.FAILED);
+					branch.log(TreeLogger.ERROR, "Unable to start the web app", e);
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Warms up the started web app, then lets requests through the
+	 * {@link ReadinessHandler} and logs the startup phases.
+	 */
+	private void markReady(TreeLogger logger) {
+		long start = System.nanoTime();
+		warmUp(logger);
+		if (warmUp != null) {
+			readinessHandler.addPhase("warmup", millisSince(start));
+		}
+		readinessHandler.setReadiness(ReadinessHandler.Readiness.READY);
+		logger.log(TreeLogger.INFO, "Web app ready, startup phases in ms: "
+				+ readinessHandler.getPhases());
+	}
+
+	private static long millisSince(long nanoTime) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanoTime);
+	}
+
+	/**
+	 * Replays the configured warm-up requests against the web app, if any.
+	 */
+	private void warmUp(TreeLogger logger) {
+		if (warmUp != null) {
+			warmUp.run(warmUpConnector, logger);
+		}
+	}
+
+	/**
+	 * Creates the web app for the war directory; called again for every
+	 * blue/green reload.
+	 */
+	protected WebAppContext newWebAppContext(TreeLogger logger,
+			File appRootDir) {
+		WebAppContextWithReload wac = new WebAppContextWithReload(logger, appRootDir.getAbsolutePath(), "/");
+		wac.leakTracker = leakTracker;
+		//wac.setDescriptor(appRootDir.getAbsolutePath() + "/WEB-INF/web.xml");
+		wac.setConfigurationDiscovered(true);
+		
+		wac.setConfigurationClasses(__dftConfigurationClasses);
+
+		if (Boolean.getBoolean(PROPERTY_WEBSOCKET)) {
+			addWebSocketServlet(logger, wac);
+		}
+		return wac;
 	}
 
 	protected ServerConnector getConnector(Server server) {		
-		return new ServerConnector(server);
+		return getConnectorProfile().newConnector(server);
+	}
+
+	/**
+	 * The connector settings to use, by default resolved from the
+	 * {@code errai.jetty.connector.*} system properties.
+	 */
+	protected ConnectorProfile getConnectorProfile() {
+		return ConnectorProfile.fromSystemProperties();
+	}
+
+	/**
+	 * Creates the worker pool for the server. Sized by the
+	 * {@code errai.jetty.threads.*} system properties; override to supply a
+	 * custom pool.
+	 */
+	protected ThreadPool getThreadPool(TreeLogger logger) {
+		if (Boolean.getBoolean(PROPERTY_THREADS_VIRTUAL)) {
+			ExecutorService executor = newVirtualThreadExecutor();
+			if (executor != null) {
+				logger.log(TreeLogger.TRACE, "Using a virtual thread per request");
+				return new ExecutorThreadPool(executor);
+			}
+			logger.log(TreeLogger.WARN,
+					"Virtual threads are not supported by this JVM, using a queued thread pool");
+		}
+
+		int maxThreads = Integer.getInteger(PROPERTY_THREADS_MAX, 200);
+		int minThreads = Math.min(Integer.getInteger(PROPERTY_THREADS_MIN, 8),
+				maxThreads);
+		int idleTimeout = Integer.getInteger(PROPERTY_THREADS_IDLE_TIMEOUT, 60000);
+		int queueCapacity = Integer.getInteger(PROPERTY_THREADS_QUEUE, 0);
+
+		QueuedThreadPool threadPool;
+		if (queueCapacity > 0) {
+			// A queue that never grows, so offer() fails and the job is rejected.
+			threadPool = new QueuedThreadPool(maxThreads, minThreads,
+					idleTimeout, new BlockingArrayQueue<Runnable>(queueCapacity,
+							0, queueCapacity));
+		} else {
+			threadPool = new QueuedThreadPool(maxThreads, minThreads,
+					idleTimeout);
+		}
+		threadPool.setName(System.getProperty(PROPERTY_THREADS_NAME,
+				"jetty-devmode"));
+		logger.log(TreeLogger.TRACE, "Using a queued thread pool with "
+				+ minThreads + ".." + maxThreads + " threads"
+				+ (queueCapacity > 0 ? " and a queue of " + queueCapacity : ""));
+		return threadPool;
+	}
+
+	/**
+	 * Looks up {@code Executors.newVirtualThreadPerTaskExecutor()}
+	 * reflectively, as it only exists on newer JVMs.
+	 * 
+	 * @return the executor, or {@code null} if virtual threads are unavailable
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates the request log, asynchronous if
+	 * {@code errai.jetty.requestlog.async} is set.
+	 */
+	protected RequestLog createRequestLog(TreeLogger logger) {
+		JettyRequestLogger requestLog;
+		if (Boolean.getBoolean(PROPERTY_REQUESTLOG_ASYNC)) {
+			JettyRequestLogger.OverflowPolicy overflowPolicy = "caller"
+					.equalsIgnoreCase(System.getProperty(PROPERTY_REQUESTLOG_OVERFLOW)) ? JettyRequestLogger.OverflowPolicy.CALLER_RUNS
+					: JettyRequestLogger.OverflowPolicy.DROP;
+			requestLog = new JettyRequestLogger(logger, getBaseLogLevel(),
+					Integer.getInteger(PROPERTY_REQUESTLOG_QUEUE, 8192),
+					overflowPolicy);
+		} else {
+			requestLog = new JettyRequestLogger(logger, getBaseLogLevel());
+		}
+		String headers = System.getProperty(PROPERTY_REQUESTLOG_HEADERS_INCLUDE);
+		if (headers != null) {
+			requestLog.setIncludedHeaders(headers.split(","));
+		}
+		headers = System.getProperty(PROPERTY_REQUESTLOG_HEADERS_EXCLUDE);
+		if (headers != null) {
+			requestLog.setExcludedHeaders(headers.split(","));
+		}
+		String slowMillis = System.getProperty(PROPERTY_REQUESTLOG_SLOW_MILLIS);
+		String slowPercentile = System.getProperty(PROPERTY_REQUESTLOG_SLOW_PERCENTILE);
+		if (slowMillis != null || slowPercentile != null) {
+			requestLog.setSlowRequestMode(slowMillis == null ? -1 : Long
+					.parseLong(slowMillis), slowPercentile == null ? 0 : Double
+					.parseDouble(slowPercentile));
+		}
+		return requestLog;
+	}
+
+	/**
+	 * Registers the WebSocket bus transport next to the web app's own
+	 * servlets and tells Errai to advertise it. Clients that cannot upgrade
+	 * keep long-polling.
+	 */
+	protected void addWebSocketServlet(TreeLogger logger, WebAppContext wac) {
+		String pathElement = System.getProperty(PROPERTY_WEBSOCKET_PATH,
+				"in.erraiBusWebSocket");
+		wac.setInitParameter("websockets-enabled", "true");
+		wac.setInitParameter("websocket-path-element", pathElement);
+		// By name, so the servlet is loaded by the web app ClassLoader.
+		wac.addServlet(JettyWebSocketBusServlet.class.getName(), "/"
+				+ pathElement);
+		logger.log(TreeLogger.TRACE, "Errai bus WebSocket transport at /"
+				+ pathElement);
 	}
 
 	private void checkStartParams(TreeLogger logger, int port, File appRootDir) {
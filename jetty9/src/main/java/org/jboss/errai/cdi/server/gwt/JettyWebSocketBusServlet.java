@@ -0,0 +1,260 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpSession;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.UpgradeResponse;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
+import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import org.jboss.errai.bus.client.api.QueueSession;
+import org.jboss.errai.bus.client.protocols.BusCommands;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.SessionProvider;
+import org.jboss.errai.bus.server.io.MessageFactory;
+import org.jboss.errai.bus.server.io.QueueChannel;
+import org.jboss.errai.bus.server.io.websockets.WebSocketServerHandler;
+import org.jboss.errai.bus.server.io.websockets.WebSocketTokenManager;
+import org.jboss.errai.bus.server.service.ErraiService;
+import org.jboss.errai.bus.server.servlet.ServletBootstrapUtil;
+import org.jboss.errai.bus.server.util.LocalContext;
+import org.jboss.errai.common.client.protocols.MessageParts;
+import org.jboss.errai.marshalling.client.api.json.EJObject;
+import org.jboss.errai.marshalling.client.api.json.EJString;
+import org.jboss.errai.marshalling.client.api.json.EJValue;
+import org.jboss.errai.marshalling.server.JSONDecoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * WebSocket transport for the Errai bus on Jetty 9, the Jetty counterpart of
+ * Errai's {@code JBossAS7WebSocketServlet}. The bus advertises the socket to
+ * clients once the {@code websockets-enabled} context parameter is set; a
+ * client first connects over long-polling, then upgrades after proving with
+ * a one-time token that it owns the comet session. Once the upgrade is
+ * verified, the session's {@link MessageQueue} writes straight to the socket.
+ * <p/>
+ * If the upgrade or the negotiation fails the client bus keeps using
+ * long-polling, and when a socket closes its queue goes back to polling mode.
+ * {@link JettyLauncher} registers this servlet when the
+ * {@code errai.jetty.websocket} system property is set.
+ */
+public class JettyWebSocketBusServlet extends WebSocketServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger log = LoggerFactory.getLogger(JettyWebSocketBusServlet.class);
+
+  private static final String WEBSOCKET_SESSION_ALIAS = "Websocket:Errai:SessionAlias";
+
+  /* New and configured errai service */
+  protected ErraiService<HttpSession> service;
+
+  /* A default Http session provider */
+  protected SessionProvider<HttpSession> sessionProvider;
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init() throws ServletException {
+    service = ServletBootstrapUtil.getService(getServletConfig());
+    sessionProvider = service.getSessionProvider();
+    super.init();
+  }
+
+  @Override
+  public void configure(WebSocketServletFactory factory) {
+    factory.setCreator(new WebSocketCreator() {
+      @Override
+      public Object createWebSocket(UpgradeRequest request, UpgradeResponse response) {
+        return new BusSocket((HttpSession) request.getSession());
+      }
+    });
+  }
+
+  /**
+   * One connected socket. Doubles as the direct channel of the comet session
+   * it was negotiated for.
+   */
+  private class BusSocket implements WebSocketListener, QueueChannel {
+    private final String socketId = UUID.randomUUID().toString();
+    private final HttpSession httpSession;
+    private volatile Session socket;
+
+    BusSocket(HttpSession httpSession) {
+      this.httpSession = httpSession;
+    }
+
+    @Override
+    public void onWebSocketConnect(Session socket) {
+      this.socket = socket;
+    }
+
+    @Override
+    public void onWebSocketText(String text) {
+      try {
+        if (text.length() == 0) {
+          return;
+        }
+        if (httpSession == null) {
+          write(getFailedNegotiation("no http session"));
+          return;
+        }
+        onText(text);
+      }
+      catch (IOException e) {
+        log.debug("failed to write to websocket " + socketId, e);
+      }
+    }
+
+    @Override
+    public void onWebSocketBinary(byte[] payload, int offset, int len) {
+      try {
+        write("Binary Frames Not Supported!");
+      }
+      catch (IOException e) {
+        log.debug("failed to write to websocket " + socketId, e);
+      }
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+      detach();
+    }
+
+    @Override
+    public void onWebSocketError(Throwable cause) {
+      log.debug("websocket " + socketId + " failed", cause);
+      detach();
+    }
+
+    @Override
+    public boolean isConnected() {
+      Session current = socket;
+      return current != null && current.isOpen();
+    }
+
+    @Override
+    public void write(String data) throws IOException {
+      Session current = socket;
+      if (current == null) {
+        throw new IOException("websocket " + socketId + " is not connected");
+      }
+      current.getRemote().sendString(data);
+    }
+
+    @Override
+    public String getId() {
+      return socketId;
+    }
+
+    private void onText(String text) throws IOException {
+      final QueueSession session = sessionProvider.createOrGetSession(httpSession, socketId);
+      final LocalContext localSessionContext = LocalContext.get(session);
+      QueueSession cometSession = localSessionContext.getAttribute(QueueSession.class, WEBSOCKET_SESSION_ALIAS);
+
+      // this is an active session. send the message.
+      if (cometSession != null) {
+        service.store(MessageFactory.createCommandMessage(cometSession, text));
+        return;
+      }
+
+      final EJObject val = JSONDecoder.decode(text).isObject();
+      final String commandType = stringPart(val, MessageParts.CommandType);
+
+      // this client apparently wants to connect.
+      if (!BusCommands.ConnectToQueue.name().equals(commandType)) {
+        write(getFailedNegotiation("bad command"));
+        return;
+      }
+
+      final String sessionKey = stringPart(val, MessageParts.ConnectionSessionKey);
+      if (sessionKey == null || (cometSession = service.getBus().getSessionBySessionId(sessionKey)) == null) {
+        write(getFailedNegotiation("bad session id"));
+        return;
+      }
+
+      final LocalContext localCometSession = LocalContext.get(cometSession);
+
+      // has this client already passed the reverse challenge over the comet channel
+      if (WebSocketServerHandler.WEBSOCKET_ACTIVE.equals(
+          localCometSession.getAttribute(String.class, WebSocketServerHandler.SESSION_ATTR_WS_STATUS))) {
+
+        // set the session queue into direct channel mode.
+        service.getBus().getQueue(cometSession).setDirectSocketChannel(this);
+        localSessionContext.setAttribute(WEBSOCKET_SESSION_ALIAS, cometSession);
+        localCometSession.removeAttribute(WebSocketServerHandler.SESSION_ATTR_WS_STATUS);
+        return;
+      }
+
+      // check the activation key matches.
+      final String activationKey = stringPart(val, MessageParts.WebSocketToken);
+      if (activationKey == null || !WebSocketTokenManager.verifyOneTimeToken(cometSession, activationKey)) {
+        write(getFailedNegotiation("bad negotiation key"));
+        return;
+      }
+
+      // the key matches. now we send the reverse challenge to prove this client is actually
+      // already talking to the bus over the COMET channel.
+      final String reverseToken = WebSocketTokenManager.getNewOneTimeToken(cometSession);
+      localCometSession.setAttribute(WebSocketServerHandler.SESSION_ATTR_WS_STATUS,
+          WebSocketServerHandler.WEBSOCKET_AWAIT_ACTIVATION);
+      write(getReverseChallenge(reverseToken));
+    }
+
+    /**
+     * Puts the comet session this socket served back into polling mode.
+     */
+    private void detach() {
+      socket = null;
+      if (httpSession == null) {
+        return;
+      }
+      try {
+        final QueueSession session = sessionProvider.createOrGetSession(httpSession, socketId);
+        final QueueSession cometSession = LocalContext.get(session)
+            .getAttribute(QueueSession.class, WEBSOCKET_SESSION_ALIAS);
+        if (cometSession != null) {
+          final MessageQueue queue = service.getBus().getQueue(cometSession);
+          if (queue != null) {
+            queue.setDirectSocketChannel(null);
+          }
+        }
+      }
+      catch (IllegalStateException e) {
+        // the http session was invalidated first; the queue goes with it
+      }
+    }
+  }
+
+  private static String stringPart(EJObject object, MessageParts part) {
+    if (object == null) {
+      return null;
+    }
+    final EJValue value = object.get(part.name());
+    if (value == null) {
+      return null;
+    }
+    final EJString string = value.isString();
+    return string == null ? null : string.stringValue();
+  }
+
+  private static String getFailedNegotiation(final String error) {
+    return "[{\"" + MessageParts.ToSubject.name() + "\":\"ClientBus\", \"" + MessageParts.CommandType.name() + "\":\""
+        + BusCommands.WebsocketNegotiationFailed.name() + "\"," +
+        "\"" + MessageParts.ErrorMessage.name() + "\":\"" + error + "\"}]";
+  }
+
+  private static String getReverseChallenge(final String token) {
+    return "[{\"" + MessageParts.ToSubject.name() + "\":\"ClientBus\", \"" + MessageParts.CommandType.name() + "\":\""
+        + BusCommands.WebsocketChannelVerify.name() + "\",\"" + MessageParts.WebSocketToken + "\":\"" +
+        token + "\"}]";
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram in the style of HdrHistogram: values in
+ * microseconds go into log-linear buckets, eight per power of two, so any
+ * recorded value is reported within 12.5% of its true value. Recording is a
+ * couple of atomic increments and never allocates.
+ */
+public final class LatencyHistogram {
+
+	/** Values below this are counted exactly. */
+	private static final int LINEAR = 16;
+	private static final int SUB_BUCKETS = 8;
+	/** Enough buckets for values below 2^43 microseconds. */
+	private static final int BUCKETS = SUB_BUCKETS * 39 + LINEAR;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param micros the latency to record, in microseconds
+	 */
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+		counts.incrementAndGet(indexOf(micros));
+		total.incrementAndGet();
+		sum.addAndGet(micros);
+		long current;
+		while (micros > (current = max.get())) {
+			if (max.compareAndSet(current, micros)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = total.get();
+		return count == 0 ? 0 : (double) sum.get() / count;
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the upper bound of the bucket holding the given percentile, in
+	 *         microseconds
+	 */
+	public long getPercentile(double percentile) {
+		long count = total.get();
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100.0);
+		if (rank < 1) {
+			rank = 1;
+		}
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int indexOf(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		// Keep the top four bits: 1mmm, where mmm picks the sub-bucket.
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 3;
+		int index = shift * SUB_BUCKETS + (int) (value >>> shift);
+		return Math.min(index, BUCKETS - 1);
+	}
+
+	static long highestValueOf(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long mantissa = index % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Answers {@code 503} with {@code Retry-After} until the wrapped web app is
+ * ready, so the port can be bound before the web app has booted. Warm-up
+ * requests, see {@link WarmUp#isWarmUp(Request)}, always pass.
+ * <p/>
+ * The probe path reports the state and the duration of every startup phase
+ * as JSON, with status 200 once ready and 503 before. With
+ * {@link #setDeferChildStart(boolean)} the wrapped handler is left out of the
+ * server's own start, for the caller to start it in the background.
+ */
+public class ReadinessHandler extends HandlerWrapper {
+
+	public enum Readiness {
+		STARTING, READY, FAILED
+	}
+
+	private final String probePath;
+	private final int retryAfterSeconds;
+	private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+
+	private volatile Readiness state = Readiness.STARTING;
+	private boolean deferChildStart;
+
+	/**
+	 * @param probePath the path answering readiness probes
+	 * @param retryAfterSeconds sent with every 503
+	 */
+	public ReadinessHandler(String probePath, int retryAfterSeconds) {
+		this.probePath = probePath;
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public void setDeferChildStart(boolean deferChildStart) {
+		this.deferChildStart = deferChildStart;
+	}
+
+	public Readiness getReadiness() {
+		return state;
+	}
+
+	public void setReadiness(Readiness state) {
+		this.state = state;
+	}
+
+	/**
+	 * Records how long a startup phase took; a phase that runs again on a
+	 * reload is overwritten.
+	 */
+	public void addPhase(String name, long millis) {
+		synchronized (phases) {
+			phases.remove(name);
+			phases.put(name, millis);
+		}
+	}
+
+	/**
+	 * @return the startup phases in the order they were recorded, with their
+	 *         duration in milliseconds
+	 */
+	public Map<String, Long> getPhases() {
+		synchronized (phases) {
+			return new LinkedHashMap<String, Long>(phases);
+		}
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		Handler handler = getHandler();
+		if (deferChildStart && handler != null) {
+			unmanage(handler);
+		}
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		Handler handler = getHandler();
+		if (deferChildStart && handler != null && handler.isStarted()) {
+			handler.stop();
+		}
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		if (probePath.equals(target)) {
+			writeProbe(baseRequest, response);
+			return;
+		}
+		if (state != Readiness.READY && !WarmUp.isWarmUp(baseRequest)) {
+			baseRequest.setHandled(true);
+			response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			return;
+		}
+		super.handle(target, baseRequest, request, response);
+	}
+
+	private void writeProbe(Request baseRequest, HttpServletResponse response)
+			throws IOException {
+		baseRequest.setHandled(true);
+		Readiness current = state;
+		response.setStatus(current == Readiness.READY ? HttpServletResponse.SC_OK
+				: HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		response.setHeader("Cache-Control", "no-cache");
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		Writer writer = response.getWriter();
+		writer.write("{\"state\":\"" + current.name().toLowerCase(Locale.ENGLISH) + "\",\"phases\":{");
+		boolean first = true;
+		for (Map.Entry<String, Long> phase : getPhases().entrySet()) {
+			if (!first) {
+				writer.write(',');
+			}
+			first = false;
+			writer.write("\"" + phase.getKey() + "\":" + phase.getValue());
+		}
+		writer.write("}}");
+		writer.flush();
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free ring buffer for many producers and a single consumer.
+ * Producers claim a slot with a CAS on the tail and fail fast when the ring
+ * is full; the consumer owns the head and never blocks producers.
+ */
+final class RequestLogRing<E> {
+
+	private final AtomicReferenceArray<E> slots;
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head;
+
+	/**
+	 * @param capacity rounded up to the next power of two
+	 */
+	RequestLogRing(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new AtomicReferenceArray<E>(size);
+		this.mask = size - 1;
+	}
+
+	int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * @return false if the ring is full
+	 */
+	boolean offer(E element) {
+		while (true) {
+			long current = tail.get();
+			if (current - head > mask) {
+				return false;
+			}
+			if (tail.compareAndSet(current, current + 1)) {
+				slots.lazySet((int) current & mask, element);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Moves up to {@code max} elements into {@code batch}. Consumer thread
+	 * only. Stops early at a slot that has been claimed but not yet written.
+	 *
+	 * @return the number of elements moved
+	 */
+	int drainTo(E[] batch, int max) {
+		long current = head;
+		int count = 0;
+		while (count < max) {
+			int index = (int) current & mask;
+			E element = slots.get(index);
+			if (element == null) {
+				break;
+			}
+			slots.lazySet(index, null);
+			batch[count++] = element;
+			current++;
+		}
+		head = current;
+		return count;
+	}
+
+	boolean isEmpty() {
+		return tail.get() == head;
+	}
+}
@@ -0,0 +1,326 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Records per route group latency histograms and status code counters for
+ * the wrapped handler. Route groups are configured as
+ * {@code name=pattern|pattern,...}, where a pattern is {@code *.suffix},
+ * {@code /prefix/*} or an exact path; requests matching no group are counted
+ * under {@code other}. Latency runs from the initial dispatch until the
+ * response completes, so parked async requests such as bus long polls count
+ * in full.
+ * <p/>
+ * Every group is registered as an MBean under
+ * {@code org.jboss.errai.cdi.server.gwt:type=RequestMetrics,route=<name>}, and
+ * a JSON snapshot of all groups is served on {@link #getJsonPath()} to clients
+ * connecting from the loopback interface.
+ */
+public class RequestMetricsHandler extends HandlerWrapper {
+
+	public static final String DEFAULT_ROUTES = "bus=*.erraiBus,"
+			+ "cache=*.cache.js|*.cache.html," + "nocache=*.nocache.js,"
+			+ "hostpage=/|*.html";
+
+	private static final String JMX_DOMAIN = "org.jboss.errai.cdi.server.gwt";
+
+	/**
+	 * JMX view of one route group. Latencies are in microseconds.
+	 */
+	public interface RouteMetricsMBean {
+		String getName();
+
+		long getCount();
+
+		double getMeanLatency();
+
+		long getMaxLatency();
+
+		long getP50Latency();
+
+		long getP90Latency();
+
+		long getP99Latency();
+
+		long getP999Latency();
+
+		long getStatus1xx();
+
+		long getStatus2xx();
+
+		long getStatus3xx();
+
+		long getStatus4xx();
+
+		long getStatus5xx();
+	}
+
+	public static final class RouteMetrics implements RouteMetricsMBean {
+		private final String name;
+		private final String[] patterns;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final AtomicLongArray statuses = new AtomicLongArray(6);
+
+		RouteMetrics(String name, String[] patterns) {
+			this.name = name;
+			this.patterns = patterns;
+		}
+
+		boolean matches(String path) {
+			for (String pattern : patterns) {
+				if (pattern.startsWith("*.")) {
+					if (path.endsWith(pattern.substring(1))) {
+						return true;
+					}
+				} else if (pattern.endsWith("/*")) {
+					if (path.startsWith(pattern.substring(0,
+							pattern.length() - 1))) {
+						return true;
+					}
+				} else if (pattern.equals(path)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void record(long nanos, int status) {
+			latency.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+			int statusClass = status / 100;
+			statuses.incrementAndGet(statusClass >= 1 && statusClass <= 5 ? statusClass : 0);
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return latency.getCount();
+		}
+
+		public double getMeanLatency() {
+			return latency.getMean();
+		}
+
+		public long getMaxLatency() {
+			return latency.getMax();
+		}
+
+		public long getP50Latency() {
+			return latency.getPercentile(50);
+		}
+
+		public long getP90Latency() {
+			return latency.getPercentile(90);
+		}
+
+		public long getP99Latency() {
+			return latency.getPercentile(99);
+		}
+
+		public long getP999Latency() {
+			return latency.getPercentile(99.9);
+		}
+
+		public long getStatus1xx() {
+			return statuses.get(1);
+		}
+
+		public long getStatus2xx() {
+			return statuses.get(2);
+		}
+
+		public long getStatus3xx() {
+			return statuses.get(3);
+		}
+
+		public long getStatus4xx() {
+			return statuses.get(4);
+		}
+
+		public long getStatus5xx() {
+			return statuses.get(5);
+		}
+	}
+
+	private final RouteMetrics[] routes;
+	private final RouteMetrics other = new RouteMetrics("other", new String[0]);
+	private final String jsonPath;
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	/**
+	 * @param routes route group definitions, see the class comment
+	 * @param jsonPath the path to serve the JSON snapshot on, or null for none
+	 */
+	public RequestMetricsHandler(String routes, String jsonPath) {
+		List<RouteMetrics> parsed = new ArrayList<RouteMetrics>();
+		for (String group : routes.split(",")) {
+			int equals = group.indexOf('=');
+			if (equals <= 0) {
+				throw new IllegalArgumentException("Malformed route group '"
+						+ group + "', expected name=pattern|pattern");
+			}
+			parsed.add(new RouteMetrics(group.substring(0, equals).trim(),
+					group.substring(equals + 1).trim().split("\\|")));
+		}
+		this.routes = parsed.toArray(new RouteMetrics[parsed.size()]);
+		this.jsonPath = jsonPath;
+	}
+
+	public String getJsonPath() {
+		return jsonPath;
+	}
+
+	/**
+	 * @return the metrics of every route group, {@code other} last
+	 */
+	public List<RouteMetrics> getRoutes() {
+		List<RouteMetrics> all = new ArrayList<RouteMetrics>(routes.length + 1);
+		for (RouteMetrics route : routes) {
+			all.add(route);
+		}
+		all.add(other);
+		return all;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (RouteMetrics route : getRoutes()) {
+			ObjectName name = new ObjectName(JMX_DOMAIN
+					+ ":type=RequestMetrics,route="
+					+ ObjectName.quote(route.getName()));
+			if (!server.isRegistered(name)) {
+				server.registerMBean(new StandardMBean(route,
+						RouteMetricsMBean.class), name);
+				registered.add(name);
+			}
+		}
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		super.doStop();
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName name : registered) {
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+		}
+		registered.clear();
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		if (baseRequest.getDispatcherType() != DispatcherType.REQUEST) {
+			super.handle(target, baseRequest, request, response);
+			return;
+		}
+		if (jsonPath != null && jsonPath.equals(target)) {
+			writeJson(baseRequest, response);
+			return;
+		}
+
+		final long start = System.nanoTime();
+		try {
+			super.handle(target, baseRequest, request, response);
+		} finally {
+			final RouteMetrics route = routeFor(target);
+			if (baseRequest.isAsyncStarted()) {
+				baseRequest.getAsyncContext().addListener(new AsyncListener() {
+					public void onComplete(AsyncEvent event) throws IOException {
+						route.record(System.nanoTime() - start,
+								((HttpServletResponse) event.getSuppliedResponse())
+										.getStatus());
+					}
+
+					public void onTimeout(AsyncEvent event) throws IOException {
+					}
+
+					public void onError(AsyncEvent event) throws IOException {
+					}
+
+					public void onStartAsync(AsyncEvent event) throws IOException {
+					}
+				});
+			} else {
+				route.record(System.nanoTime() - start, response.getStatus());
+			}
+		}
+	}
+
+	RouteMetrics routeFor(String path) {
+		for (RouteMetrics route : routes) {
+			if (route.matches(path)) {
+				return route;
+			}
+		}
+		return other;
+	}
+
+	private void writeJson(Request baseRequest, HttpServletResponse response)
+			throws IOException {
+		baseRequest.setHandled(true);
+		String remote = baseRequest.getRemoteAddr();
+		if (!"127.0.0.1".equals(remote) && !"0:0:0:0:0:0:0:1".equals(remote)
+				&& !"::1".equals(remote)) {
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		Writer writer = response.getWriter();
+		writer.write('{');
+		boolean first = true;
+		for (RouteMetrics route : getRoutes()) {
+			if (!first) {
+				writer.write(',');
+			}
+			first = false;
+			writer.write("\"" + route.getName() + "\":{\"count\":"
+					+ route.getCount() + ",\"meanMicros\":"
+					+ (long) route.getMeanLatency() + ",\"p50Micros\":"
+					+ route.getP50Latency() + ",\"p90Micros\":"
+					+ route.getP90Latency() + ",\"p99Micros\":"
+					+ route.getP99Latency() + ",\"p999Micros\":"
+					+ route.getP999Latency() + ",\"maxMicros\":"
+					+ route.getMaxLatency() + ",\"status\":{\"1xx\":"
+					+ route.getStatus1xx() + ",\"2xx\":"
+					+ route.getStatus2xx() + ",\"3xx\":"
+					+ route.getStatus3xx() + ",\"4xx\":"
+					+ route.getStatus4xx() + ",\"5xx\":"
+					+ route.getStatus5xx() + "}}");
+		}
+		writer.write('}');
+		writer.flush();
+	}
+}
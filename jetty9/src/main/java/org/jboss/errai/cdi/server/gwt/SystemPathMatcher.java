@@ -0,0 +1,100 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matches class and resource names against a fixed set of package prefixes
+ * that the web app always loads from the system classpath. The prefixes are
+ * compiled once into a trie, and matching walks the raw name, treating
+ * {@code /} and {@code .} alike, without allocating.
+ */
+final class SystemPathMatcher {
+
+	static final String DEFAULT_PREFIXES = "org.eclipse.jetty.servlet.,"
+			+ "org.eclipse.jetty.server.," + "org.eclipse.jetty.plus.,"
+			+ "org.apache.jasper.," + "org.apache.xerces.";
+
+	/** Prefixes are limited to ASCII, which keeps a node's row small. */
+	private static final int ALPHABET = 128;
+
+	/*
+	 * Row i of the table holds the transitions of node i, indexed by
+	 * character: the child node plus one, or 0 for none. Node 0 is the root;
+	 * a terminal node ends a prefix.
+	 */
+	private final int[] transitions;
+	private final boolean[] terminal;
+
+	/**
+	 * @param prefixes comma separated package prefixes, {@code .} or
+	 *            {@code /} separated
+	 */
+	SystemPathMatcher(String prefixes) {
+		List<int[]> rows = new ArrayList<int[]>();
+		List<Boolean> terminalList = new ArrayList<Boolean>();
+		rows.add(new int[ALPHABET]);
+		terminalList.add(Boolean.FALSE);
+
+		for (String prefix : prefixes.split(",")) {
+			prefix = prefix.trim();
+			if (prefix.length() == 0) {
+				continue;
+			}
+			int node = 0;
+			for (int i = 0; i < prefix.length(); i++) {
+				char c = normalize(prefix.charAt(i));
+				if (c >= ALPHABET) {
+					throw new IllegalArgumentException("System path prefix '" + prefix
+							+ "' is not ASCII");
+				}
+				int[] row = rows.get(node);
+				if (row[c] == 0) {
+					rows.add(new int[ALPHABET]);
+					terminalList.add(Boolean.FALSE);
+					// the new node is the last row, stored plus one
+					row[c] = rows.size();
+				}
+				node = row[c] - 1;
+			}
+			terminalList.set(node, Boolean.TRUE);
+		}
+
+		int size = rows.size();
+		transitions = new int[size * ALPHABET];
+		terminal = new boolean[size];
+		for (int i = 0; i < size; i++) {
+			System.arraycopy(rows.get(i), 0, transitions, i * ALPHABET, ALPHABET);
+			terminal[i] = terminalList.get(i);
+		}
+	}
+
+	/**
+	 * @return true if {@code name} starts with one of the prefixes
+	 */
+	boolean matches(String name) {
+		int node = 0;
+		for (int i = 0, length = name.length(); i < length; i++) {
+			if (terminal[node]) {
+				return true;
+			}
+			char c = normalize(name.charAt(i));
+			if (c >= ALPHABET) {
+				return false;
+			}
+			int next = transitions[node * ALPHABET + c];
+			if (next == 0) {
+				return false;
+			}
+			node = next - 1;
+		}
+		return terminal[node];
+	}
+
+	private static char normalize(char c) {
+		return c == '/' ? '.' : c;
+	}
+}
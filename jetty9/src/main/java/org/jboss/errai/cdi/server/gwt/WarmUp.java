@@ -0,0 +1,181 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.jboss.errai.bus.client.framework.ClientMessageBus;
+import org.jboss.errai.bus.client.protocols.BusCommands;
+import org.jboss.errai.common.client.protocols.MessageParts;
+
+import com.google.gwt.core.ext.TreeLogger;
+
+/**
+ * Replays a fixed set of requests against a freshly started web app through
+ * an in-memory {@link LocalConnector}, so that class loading, Weld proxies and
+ * the bus are set up before real clients arrive. Entries are comma separated:
+ * a path is fetched with a GET, and {@code bus:<path>} connects a synthetic
+ * client to the bus servlet mapped under that path and disconnects it again.
+ * <p/>
+ * Requests that came in through the connector made by
+ * {@link #newConnector(Server)} are told apart by {@link #isWarmUp(Request)},
+ * which lets them reach a web app that does not take real requests yet.
+ * Nothing a client sends can make a request look like one.
+ */
+final class WarmUp {
+
+	/**
+	 * The in-memory connector warm-up requests are sent through.
+	 */
+	private static final class WarmUpConnector extends LocalConnector {
+		WarmUpConnector(Server server) {
+			super(server);
+		}
+	}
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final long TIMEOUT_SECONDS = 60;
+	private static final String BUS_PREFIX = "bus:";
+
+	private final List<String> entries = new ArrayList<String>();
+	private final int iterations;
+	private int clients;
+
+	/**
+	 * @param spec comma separated entries, see the class comment
+	 */
+	WarmUp(String spec, int iterations) {
+		for (String entry : spec.split(",")) {
+			entry = entry.trim();
+			if (entry.length() > 0) {
+				entries.add(entry);
+			}
+		}
+		this.iterations = Math.max(1, iterations);
+	}
+
+	/**
+	 * @return a connector to add to {@code server} and pass to
+	 *         {@link #run(LocalConnector, TreeLogger)}
+	 */
+	static LocalConnector newConnector(Server server) {
+		return new WarmUpConnector(server);
+	}
+
+	/**
+	 * @return whether the request was sent by a warm-up
+	 */
+	static boolean isWarmUp(Request baseRequest) {
+		return baseRequest.getHttpChannel().getConnector() instanceof WarmUpConnector;
+	}
+
+	/**
+	 * Runs every entry {@code iterations} times. Failures are logged and do
+	 * not stop the remaining entries.
+	 */
+	void run(LocalConnector connector, TreeLogger logger) {
+		long start = System.nanoTime();
+		TreeLogger branch = logger.branch(TreeLogger.TRACE, "Warming up with "
+				+ entries.size() + " requests");
+		for (int i = 0; i < iterations; i++) {
+			for (String entry : entries) {
+				long requestStart = System.nanoTime();
+				try {
+					String status;
+					if (entry.startsWith(BUS_PREFIX)) {
+						status = connectBus(connector, entry.substring(BUS_PREFIX.length()));
+					} else {
+						status = statusOf(send(connector, "GET", entry, null, null, null));
+					}
+					if (branch.isLoggable(TreeLogger.TRACE)) {
+						branch.log(TreeLogger.TRACE, entry + ": " + status + " in "
+								+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestStart)
+								+ " ms");
+					}
+				} catch (Exception e) {
+					branch.log(TreeLogger.WARN, "Warm-up request " + entry + " failed", e);
+				}
+			}
+		}
+		branch.log(TreeLogger.TRACE, "Warm-up completed in "
+				+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+	}
+
+	/**
+	 * Connects a client the way the Errai client bus does on startup, then
+	 * disconnects it so its queue does not linger until the session expires.
+	 */
+	private String connectBus(LocalConnector connector, String path) throws Exception {
+		if (!path.endsWith("/")) {
+			path += "/";
+		}
+		String clientId = "warmup-" + (++clients);
+		String uri = path + "out." + clientId + ".erraiBus?z=0";
+
+		String response = send(connector, "POST", uri, clientId, null, "[{\""
+				+ MessageParts.CommandType.name() + "\":\"" + BusCommands.ConnectToQueue.name()
+				+ "\",\"" + MessageParts.ToSubject.name() + "\":\"ServerBus\",\""
+				+ MessageParts.PriorityProcessing.name() + "\":\"1\"}]");
+		String status = statusOf(response);
+		String cookie = sessionCookieOf(response);
+		if (cookie != null) {
+			send(connector, "POST", path + "out." + clientId + ".erraiBus?z=1", clientId, cookie, "[{\""
+					+ MessageParts.CommandType.name() + "\":\"" + BusCommands.Disconnect.name()
+					+ "\",\"" + MessageParts.ToSubject.name() + "\":\"ServerBus\"}]");
+		}
+		return status;
+	}
+
+	private static String send(LocalConnector connector, String method, String uri,
+			String clientId, String cookie, String body) throws Exception {
+		StringBuilder request = new StringBuilder(256);
+		request.append(method).append(' ').append(uri).append(" HTTP/1.1\r\n");
+		request.append("Host: localhost\r\n");
+		if (clientId != null) {
+			request.append(ClientMessageBus.REMOTE_QUEUE_ID_HEADER).append(": ")
+					.append(clientId).append("\r\n");
+		}
+		if (cookie != null) {
+			request.append("Cookie: ").append(cookie).append("\r\n");
+		}
+		if (body != null) {
+			request.append("Content-Type: application/json; charset=utf-8\r\n");
+			request.append("Content-Length: ").append(body.getBytes(UTF_8).length)
+					.append("\r\n");
+		}
+		request.append("Connection: close\r\n\r\n");
+		if (body != null) {
+			request.append(body);
+		}
+		return connector.getResponses(request.toString(), TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private static String statusOf(String response) {
+		if (response == null || response.length() == 0) {
+			return "no response";
+		}
+		int end = response.indexOf('\r');
+		return end < 0 ? response : response.substring(0, end);
+	}
+
+	private static String sessionCookieOf(String response) {
+		int index = response.indexOf("Set-Cookie: ");
+		if (index < 0) {
+			return null;
+		}
+		int start = index + "Set-Cookie: ".length();
+		int end = response.indexOf(';', start);
+		int lineEnd = response.indexOf('\r', start);
+		if (end < 0 || (lineEnd >= 0 && lineEnd < end)) {
+			end = lineEnd;
+		}
+		return end < 0 ? null : response.substring(start, end);
+	}
+}
@@ -0,0 +1,451 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Tells whether anything the web app is built from changed since it was last
+ * started: the files under {@code WEB-INF/classes} and {@code WEB-INF/lib},
+ * and the descriptors directly in {@code WEB-INF}. Files whose size or
+ * modification time moved are compared by checksum, so a rebuild that
+ * rewrites identical files is not a change.
+ * <p/>
+ * The baseline checksums of the first start are computed on a background
+ * thread; later baselines reuse them for every file that was not touched.
+ * <p/>
+ * The directories are watched with a {@link WatchService}, so a scan only
+ * looks at the files it was told about, and only waits for writes to pause
+ * when there were any. Where the platform's {@link WatchService} merely polls,
+ * or its events overflowed, every file is listed again instead.
+ */
+final class WebAppChangeTracker {
+
+	/**
+	 * The outcome of {@link WebAppChangeTracker#scan()}.
+	 */
+	static final class Changes {
+		private final List<String> files;
+		private final Map<String, FileState> state;
+
+		Changes(List<String> files, Map<String, FileState> state) {
+			this.files = files;
+			this.state = state;
+		}
+
+		boolean isEmpty() {
+			return files.isEmpty();
+		}
+
+		/**
+		 * @return one line per added, modified or removed file
+		 */
+		List<String> getFiles() {
+			return files;
+		}
+	}
+
+	private static final class FileState {
+		final long size;
+		final long lastModified;
+		final long checksum;
+
+		FileState(long size, long lastModified, long checksum) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.checksum = checksum;
+		}
+
+		boolean sameStamp(FileState other) {
+			return size == other.size && lastModified == other.lastModified;
+		}
+	}
+
+	/** Upper bound on waiting for a burst of writes to end. */
+	private static final int MAX_QUIET_PERIODS = 50;
+
+	private final File appRootDir;
+	private final long quietMillis;
+
+	private volatile Future<Map<String, FileState>> baseline;
+
+	/*
+	 * Set up with the first baseline; then only used by scan() and
+	 * commit(). A null watcher means every scan lists all files.
+	 */
+	private volatile WatchService watcher;
+	private final Map<WatchKey, Path> watched = new HashMap<WatchKey, Path>();
+
+	/**
+	 * Paths relative to the app root that were touched since the baseline.
+	 */
+	private final Set<String> pending = new TreeSet<String>();
+	private boolean overflowed;
+
+	/**
+	 * @param quietMillis how long the files must stay untouched before a
+	 *            scan compares them
+	 */
+	WebAppChangeTracker(File appRootDir, long quietMillis) {
+		this.appRootDir = appRootDir;
+		this.quietMillis = quietMillis;
+	}
+
+	/**
+	 * Starts computing the baseline of the web app as it is now.
+	 */
+	void start() {
+		FutureTask<Map<String, FileState>> task = new FutureTask<Map<String, FileState>>(
+				new Callable<Map<String, FileState>>() {
+					@Override
+					public Map<String, FileState> call() throws IOException {
+						// Watch first, so that nothing written meanwhile is missed.
+						watch();
+						return checksum(list(), Collections.<String, FileState> emptyMap());
+					}
+				});
+		baseline = task;
+		Thread thread = new Thread(task, "errai-change-tracker");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Waits for writes, if there were any, to settle, then compares the web
+	 * app against the baseline. If the baseline could not be computed, every file counts as
+	 * changed.
+	 */
+	Changes scan() throws InterruptedException, IOException {
+		Map<String, FileState> previous;
+		try {
+			previous = baseline.get();
+		} catch (ExecutionException e) {
+			previous = Collections.emptyMap();
+			stopWatching();
+		}
+
+		Map<String, FileState> current;
+		if (watcher != null && drainEvents() && !overflowed) {
+			TreeMap<String, FileState> updated = new TreeMap<String, FileState>(previous);
+			for (String path : pending) {
+				// The path may be a file or a whole directory, now or before.
+				updated.remove(path);
+				updated.subMap(path + '/', path + '0').clear();
+				Map<String, FileState> listing = new TreeMap<String, FileState>();
+				File file = new File(appRootDir, path);
+				if (file.isDirectory()) {
+					list(file, path + '/', listing);
+				} else if (file.isFile()) {
+					listing.put(path, stamp(file));
+				}
+				for (String listed : new ArrayList<String>(listing.keySet())) {
+					if (!isTracked(listed)) {
+						listing.remove(listed);
+					}
+				}
+				updated.putAll(checksum(listing, Collections.<String, FileState> emptyMap()));
+			}
+			current = updated;
+		} else {
+			current = checksum(settledListing(), previous);
+		}
+
+		List<String> files = new ArrayList<String>();
+		for (Map.Entry<String, FileState> entry : current.entrySet()) {
+			FileState before = previous.get(entry.getKey());
+			if (before == null) {
+				files.add("added " + entry.getKey());
+			} else if (before.checksum != entry.getValue().checksum) {
+				files.add("modified " + entry.getKey());
+			}
+		}
+		for (String path : previous.keySet()) {
+			if (!current.containsKey(path)) {
+				files.add("removed " + path);
+			}
+		}
+		return new Changes(files, current);
+	}
+
+	/**
+	 * Lists all files once writes to them have paused, polling.
+	 */
+	private Map<String, FileState> settledListing() throws InterruptedException {
+		Map<String, FileState> listing = list();
+		for (int i = 0; i < MAX_QUIET_PERIODS; i++) {
+			Thread.sleep(quietMillis);
+			Map<String, FileState> next = list();
+			boolean settled = next.size() == listing.size();
+			for (Map.Entry<String, FileState> entry : next.entrySet()) {
+				if (!settled) {
+					break;
+				}
+				FileState before = listing.get(entry.getKey());
+				settled = before != null && before.sameStamp(entry.getValue());
+			}
+			listing = next;
+			if (settled) {
+				break;
+			}
+		}
+		return listing;
+	}
+
+	/**
+	 * Takes the events queued so far into {@link #pending}. If there were
+	 * any, keeps taking them until none arrived for {@link #quietMillis}.
+	 *
+	 * @return false if the watcher stopped working
+	 */
+	private boolean drainEvents() throws InterruptedException {
+		try {
+			boolean any = false;
+			for (WatchKey key = watcher.poll(); key != null; key = watcher.poll()) {
+				handle(key);
+				any = true;
+			}
+			for (int i = 0; any && i < MAX_QUIET_PERIODS; i++) {
+				WatchKey key = watcher.poll(quietMillis, TimeUnit.MILLISECONDS);
+				any = key != null;
+				for (; key != null; key = watcher.poll()) {
+					handle(key);
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			// A new directory could not be watched.
+			stopWatching();
+			return false;
+		}
+	}
+
+	private void handle(WatchKey key) throws IOException {
+		Path dir = watched.get(key);
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == OVERFLOW || dir == null) {
+				overflowed = true;
+				continue;
+			}
+			Path child = dir.resolve((Path) event.context());
+			String path = relative(child);
+			if (!isTracked(path)) {
+				continue;
+			}
+			pending.add(path);
+			if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)
+					&& (isUnder(path, "WEB-INF/classes") || isUnder(path, "WEB-INF/lib"))) {
+				watchTree(child);
+			}
+		}
+		if (!key.reset()) {
+			watched.remove(key);
+		}
+	}
+
+	/**
+	 * Watches {@code WEB-INF} and every directory under its classes and lib.
+	 * Leaves {@link #watcher} null if that is not possible, or would only
+	 * poll.
+	 */
+	private void watch() {
+		Path webInf = new File(appRootDir, "WEB-INF").toPath();
+		if (!Files.isDirectory(webInf)) {
+			return;
+		}
+		WatchService service = null;
+		try {
+			service = FileSystems.getDefault().newWatchService();
+			if (service.getClass().getName().endsWith("PollingWatchService")) {
+				// Would see changes seconds late, and skip reloads.
+				service.close();
+				return;
+			}
+			watcher = service;
+			register(webInf);
+			watchTree(webInf.resolve("classes"));
+			watchTree(webInf.resolve("lib"));
+		} catch (IOException e) {
+			watcher = service;
+			stopWatching();
+		}
+	}
+
+	private void stopWatching() {
+		WatchService service = watcher;
+		watcher = null;
+		watched.clear();
+		if (service != null) {
+			try {
+				service.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+
+	private void watchTree(Path root) throws IOException {
+		if (!Files.isDirectory(root)) {
+			return;
+		}
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+					throws IOException {
+				register(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private void register(Path dir) throws IOException {
+		watched.put(dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), dir);
+	}
+
+	private String relative(Path path) {
+		return appRootDir.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @return whether {@link #list()} lists the file at {@code path}, or
+	 *         files under it
+	 */
+	private static boolean isTracked(String path) {
+		return isUnder(path, "WEB-INF/classes") || isUnder(path, "WEB-INF/lib")
+				|| path.startsWith("WEB-INF/") && path.indexOf('/', "WEB-INF/".length()) < 0;
+	}
+
+	private static boolean isUnder(String path, String dir) {
+		return path.startsWith(dir) && (path.length() == dir.length() || path.charAt(dir.length()) == '/');
+	}
+
+	/**
+	 * Makes the state seen by {@code changes} the new baseline, once the web
+	 * app has been restarted with it.
+	 */
+	void commit(Changes changes) {
+		FutureTask<Map<String, FileState>> task = new FutureTask<Map<String, FileState>>(
+				new Runnable() {
+					@Override
+					public void run() {
+					}
+				}, changes.state);
+		task.run();
+		baseline = task;
+		pending.clear();
+		overflowed = false;
+	}
+
+	/**
+	 * @return size and modification time of every tracked file, keyed by
+	 *         its path relative to the app root
+	 */
+	private Map<String, FileState> list() {
+		Map<String, FileState> files = new TreeMap<String, FileState>();
+		File webInf = new File(appRootDir, "WEB-INF");
+		list(new File(webInf, "classes"), "WEB-INF/classes/", files);
+		list(new File(webInf, "lib"), "WEB-INF/lib/", files);
+		File[] descriptors = webInf.listFiles();
+		if (descriptors != null) {
+			for (File descriptor : descriptors) {
+				if (descriptor.isFile()) {
+					files.put("WEB-INF/" + descriptor.getName(), stamp(descriptor));
+				}
+			}
+		}
+		return files;
+	}
+
+	private static void list(File dir, String prefix, Map<String, FileState> files) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			if (child.isDirectory()) {
+				list(child, prefix + child.getName() + '/', files);
+			} else {
+				files.put(prefix + child.getName(), stamp(child));
+			}
+		}
+	}
+
+	private static FileState stamp(File file) {
+		return new FileState(file.length(), file.lastModified(), 0);
+	}
+
+	/**
+	 * Fills in checksums, reusing those of {@code known} files whose size
+	 * and modification time did not move.
+	 */
+	private Map<String, FileState> checksum(Map<String, FileState> listing,
+			Map<String, FileState> known) throws IOException {
+		Map<String, FileState> result = new TreeMap<String, FileState>();
+		byte[] buffer = new byte[64 * 1024];
+		for (Map.Entry<String, FileState> entry : listing.entrySet()) {
+			FileState stamp = entry.getValue();
+			FileState before = known.get(entry.getKey());
+			if (before != null && before.sameStamp(stamp)) {
+				result.put(entry.getKey(), before);
+				continue;
+			}
+			File file = new File(appRootDir, entry.getKey());
+			long checksum;
+			try {
+				checksum = checksum(file, buffer);
+			} catch (IOException e) {
+				if (file.exists()) {
+					throw e;
+				}
+				// Deleted since it was listed.
+				continue;
+			}
+			result.put(entry.getKey(), new FileState(stamp.size, stamp.lastModified, checksum));
+		}
+		return result;
+	}
+
+	private static long checksum(File file, byte[] buffer) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				crc.update(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
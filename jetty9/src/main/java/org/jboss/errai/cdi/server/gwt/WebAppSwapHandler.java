@@ -0,0 +1,142 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+/**
+ * Wrapper whose handler can be replaced while the server runs, for
+ * blue/green reloads: the replacement is started next to the live handler,
+ * then {@link #swap(Handler)} routes every new request to it at once. The
+ * requests still being dispatched to the old handler are counted, so it can
+ * be stopped once they are done. Async requests are only counted until their
+ * initial dispatch returns; when the old handler stops, they are completed
+ * or cut by whatever started them.
+ * <p/>
+ * A handler can be {@link #stage(Handler) staged} before the swap, to receive
+ * the warm-up requests, see {@link WarmUp#isWarmUp(Request)}, while the live
+ * one keeps serving everything else.
+ */
+public class WebAppSwapHandler extends HandlerWrapper {
+
+	private static final class Generation {
+		final Handler handler;
+		final AtomicInteger active = new AtomicInteger();
+
+		Generation(Handler handler) {
+			this.handler = handler;
+		}
+	}
+
+	private volatile Generation live;
+	private volatile Generation retired;
+	private volatile Handler staged;
+
+	@Override
+	public void setHandler(Handler handler) {
+		super.setHandler(handler);
+		live = handler == null ? null : new Generation(handler);
+	}
+
+	@Override
+	public Handler[] getHandlers() {
+		Generation current = live;
+		return current == null ? new Handler[0] : new Handler[] { current.handler };
+	}
+
+	/**
+	 * Routes warm-up requests to {@code next}, which must already be started,
+	 * until it is swapped in.
+	 */
+	public void stage(Handler next) {
+		next.setServer(getServer());
+		staged = next;
+	}
+
+	/**
+	 * Routes all new requests to {@code next}, which must already be started.
+	 * The wrapper takes over its lifecycle; the previous handler is released
+	 * and left running for the caller to stop.
+	 *
+	 * @return the previous handler
+	 */
+	public Handler swap(Handler next) {
+		if (!next.isStarted()) {
+			throw new IllegalStateException("Not started: " + next);
+		}
+		next.setServer(getServer());
+		addBean(next, true);
+		Generation previous = live;
+		live = new Generation(next);
+		staged = null;
+		retired = previous;
+		if (previous == null) {
+			return null;
+		}
+		removeBean(previous.handler);
+		return previous.handler;
+	}
+
+	/**
+	 * Waits for the requests dispatched to the handler replaced by the last
+	 * {@link #swap(Handler)} to return.
+	 *
+	 * @return false if some were still active after {@code timeoutMillis}
+	 */
+	public boolean awaitRetired(long timeoutMillis) throws InterruptedException {
+		Generation previous = retired;
+		if (previous == null) {
+			return true;
+		}
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (previous.active.get() > 0) {
+			if (System.nanoTime() - deadline >= 0) {
+				return false;
+			}
+			Thread.sleep(10);
+		}
+		retired = null;
+		return true;
+	}
+
+	@Override
+	public void handle(String target, Request baseRequest,
+			HttpServletRequest request, HttpServletResponse response)
+			throws IOException, ServletException {
+		Handler warming = staged;
+		if (warming != null && WarmUp.isWarmUp(baseRequest)) {
+			warming.handle(target, baseRequest, request, response);
+			return;
+		}
+		Generation current;
+		while (true) {
+			current = live;
+			if (current == null || !isStarted()) {
+				return;
+			}
+			// Count the request first, then make sure it was not swapped out
+			// meanwhile, or awaitRetired() could miss it.
+			current.active.incrementAndGet();
+			if (current == live) {
+				break;
+			}
+			current.active.decrementAndGet();
+		}
+		try {
+			current.handler.handle(target, baseRequest, request, response);
+		} finally {
+			current.active.decrementAndGet();
+		}
+	}
+}
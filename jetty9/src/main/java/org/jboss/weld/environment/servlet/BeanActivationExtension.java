@@ -0,0 +1,254 @@
+/*
+ * License: APL2
+ */
+package org.jboss.weld.environment.servlet;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.context.spi.CreationalContext;
+import javax.enterprise.event.Observes;
+import javax.enterprise.inject.spi.AnnotatedConstructor;
+import javax.enterprise.inject.spi.AnnotatedField;
+import javax.enterprise.inject.spi.AnnotatedMethod;
+import javax.enterprise.inject.spi.AnnotatedType;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.Extension;
+import javax.enterprise.inject.spi.InjectionPoint;
+import javax.enterprise.inject.spi.InjectionTarget;
+import javax.enterprise.inject.spi.ProcessAnnotatedType;
+import javax.enterprise.inject.spi.ProcessInjectionTarget;
+import javax.enterprise.inject.spi.ProcessManagedBean;
+import javax.enterprise.util.AnnotationLiteral;
+import javax.inject.Scope;
+
+import org.jboss.errai.bus.server.annotations.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extension added by {@link WeldEclipseListener} to defer and report bean
+ * instantiation.
+ * <p/>
+ * Normal scoped beans, {@code @ApplicationScoped} ones included, are already
+ * created on first use: observers and Errai's bus subscriptions hold client
+ * proxies. The Errai {@link Service} endpoints without a scope, or with a
+ * pseudo-scope such as {@code @Singleton}, are created while the bus starts.
+ * With lazy services, those that can be proxied are made
+ * {@code @ApplicationScoped}, so their subscriptions are registered at once
+ * and the instance is created by the first message. Other injection points
+ * of such a type share that instance.
+ * <p/>
+ * With the report, every managed bean instantiation is recorded, and
+ * {@link #report()} logs the beans that were never instantiated.
+ */
+public class BeanActivationExtension implements Extension {
+    private static final Logger log = LoggerFactory.getLogger(BeanActivationExtension.class);
+
+    private final boolean lazyServices;
+    private final boolean tracking;
+
+    private final Set<String> beans = Collections.synchronizedSet(new HashSet<String>());
+    private final Set<String> touched = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public BeanActivationExtension(boolean lazyServices, boolean tracking) {
+        this.lazyServices = lazyServices;
+        this.tracking = tracking;
+    }
+
+    public <X> void processAnnotatedType(@Observes ProcessAnnotatedType<X> event, BeanManager beanManager) {
+        if (!lazyServices) {
+            return;
+        }
+        AnnotatedType<X> type = event.getAnnotatedType();
+        if (!type.isAnnotationPresent(Service.class)) {
+            return;
+        }
+        for (Annotation annotation : type.getAnnotations()) {
+            Class<? extends Annotation> annotationType = annotation.annotationType();
+            if (beanManager.isNormalScope(annotationType) || beanManager.isStereotype(annotationType)) {
+                return;
+            }
+        }
+        if (!isProxyable(type.getJavaClass())) {
+            log.debug("Service " + type.getJavaClass().getName() + " cannot be proxied, it is created eagerly");
+            return;
+        }
+        event.setAnnotatedType(new ApplicationScopedType<X>(type));
+    }
+
+    public <X> void processManagedBean(@Observes ProcessManagedBean<X> event) {
+        if (tracking) {
+            beans.add(event.getBean().getBeanClass().getName());
+        }
+    }
+
+    public <X> void processInjectionTarget(@Observes ProcessInjectionTarget<X> event) {
+        if (tracking) {
+            event.setInjectionTarget(new TrackingInjectionTarget<X>(event.getInjectionTarget(),
+                    event.getAnnotatedType().getJavaClass().getName()));
+        }
+    }
+
+    /**
+     * Logs the managed beans that have not been instantiated so far.
+     */
+    public void report() {
+        if (!tracking) {
+            return;
+        }
+        Set<String> idle = new TreeSet<String>();
+        synchronized (beans) {
+            for (String bean : beans) {
+                if (!touched.contains(bean)) {
+                    idle.add(bean);
+                }
+            }
+        }
+        log.info(idle.size() + " of " + beans.size() + " managed beans were never instantiated"
+                + (idle.isEmpty() ? "" : ": " + idle));
+    }
+
+    /**
+     * Mirrors the checks Weld makes before proxying a class: not final, a
+     * non-private no-arg constructor and no final instance methods a client
+     * could call. Normal scoped beans must not have public fields either.
+     */
+    private static boolean isProxyable(Class<?> type) {
+        if (Modifier.isFinal(type.getModifiers()) || type.isInterface()) {
+            return false;
+        }
+        boolean constructor = false;
+        for (Constructor<?> candidate : type.getDeclaredConstructors()) {
+            if (candidate.getParameterTypes().length == 0 && !Modifier.isPrivate(candidate.getModifiers())) {
+                constructor = true;
+            }
+        }
+        if (!constructor) {
+            return false;
+        }
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Method method : current.getDeclaredMethods()) {
+                int modifiers = method.getModifiers();
+                if (Modifier.isFinal(modifiers) && !Modifier.isStatic(modifiers) && !Modifier.isPrivate(modifiers)) {
+                    return false;
+                }
+            }
+            for (Field field : current.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isPublic(modifiers) && !Modifier.isStatic(modifiers)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static final class ApplicationScopedLiteral extends AnnotationLiteral<ApplicationScoped> implements ApplicationScoped {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final class ApplicationScopedType<X> implements AnnotatedType<X> {
+        private static final Annotation APPLICATION_SCOPED = new ApplicationScopedLiteral();
+
+        private final AnnotatedType<X> delegate;
+        private final Set<Annotation> annotations = new HashSet<Annotation>();
+
+        ApplicationScopedType(AnnotatedType<X> delegate) {
+            this.delegate = delegate;
+            for (Annotation annotation : delegate.getAnnotations()) {
+                if (!annotation.annotationType().isAnnotationPresent(Scope.class)) {
+                    annotations.add(annotation);
+                }
+            }
+            annotations.add(APPLICATION_SCOPED);
+        }
+
+        public Class<X> getJavaClass() {
+            return delegate.getJavaClass();
+        }
+
+        public Set<AnnotatedConstructor<X>> getConstructors() {
+            return delegate.getConstructors();
+        }
+
+        public Set<AnnotatedMethod<? super X>> getMethods() {
+            return delegate.getMethods();
+        }
+
+        public Set<AnnotatedField<? super X>> getFields() {
+            return delegate.getFields();
+        }
+
+        public Type getBaseType() {
+            return delegate.getBaseType();
+        }
+
+        public Set<Type> getTypeClosure() {
+            return delegate.getTypeClosure();
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T extends Annotation> T getAnnotation(Class<T> annotationType) {
+            for (Annotation annotation : annotations) {
+                if (annotation.annotationType() == annotationType) {
+                    return (T) annotation;
+                }
+            }
+            return null;
+        }
+
+        public Set<Annotation> getAnnotations() {
+            return Collections.unmodifiableSet(annotations);
+        }
+
+        public boolean isAnnotationPresent(Class<? extends Annotation> annotationType) {
+            return getAnnotation(annotationType) != null;
+        }
+    }
+
+    private final class TrackingInjectionTarget<X> implements InjectionTarget<X> {
+        private final InjectionTarget<X> delegate;
+        private final String name;
+
+        TrackingInjectionTarget(InjectionTarget<X> delegate, String name) {
+            this.delegate = delegate;
+            this.name = name;
+        }
+
+        public X produce(CreationalContext<X> ctx) {
+            touched.add(name);
+            return delegate.produce(ctx);
+        }
+
+        public void inject(X instance, CreationalContext<X> ctx) {
+            delegate.inject(instance, ctx);
+        }
+
+        public void postConstruct(X instance) {
+            delegate.postConstruct(instance);
+        }
+
+        public void preDestroy(X instance) {
+            delegate.preDestroy(instance);
+        }
+
+        public void dispose(X instance) {
+            delegate.dispose(instance);
+        }
+
+        public Set<InjectionPoint> getInjectionPoints() {
+            return delegate.getInjectionPoints();
+        }
+    }
+}
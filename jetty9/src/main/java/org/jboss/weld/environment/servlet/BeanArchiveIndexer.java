@@ -0,0 +1,54 @@
+/*
+ * License: APL2
+ */
+package org.jboss.weld.environment.servlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the bean archive index a war ships under
+ * {@link IndexedURLScanner#PACKAGED_INDEX}, so that {@link WeldEclipseListener}
+ * does not have to open its bean archive jars on startup. Meant to run during
+ * the build, e.g. from the antrun plugin in {@code prepare-package}:
+ * <pre>
+ * java org.jboss.weld.environment.servlet.BeanArchiveIndexer &lt;output file&gt; &lt;classpath of WEB-INF/lib&gt;
+ * </pre>
+ * Classpath elements that are not jars are ignored, as are jars without a
+ * {@code META-INF/beans.xml}.
+ */
+public class BeanArchiveIndexer {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.err.println("Usage: BeanArchiveIndexer <output file> <classpath>");
+            System.exit(1);
+        }
+        File output = new File(args[0]);
+        List<File> jars = new ArrayList<File>();
+        for (String element : args[1].split(File.pathSeparator)) {
+            File file = new File(element);
+            if (file.isFile() && element.endsWith(".jar")) {
+                jars.add(file);
+            }
+        }
+
+        File parent = output.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IllegalStateException("Unable to create " + parent);
+        }
+        IndexedURLScanner scanner = new IndexedURLScanner(BeanArchiveIndexer.class.getClassLoader(), null);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+        int archives;
+        try {
+            archives = scanner.writePackaged(jars, writer);
+        } finally {
+            writer.close();
+        }
+        System.out.println("Indexed " + archives + " of " + jars.size() + " jars as bean archives in " + output);
+    }
+}
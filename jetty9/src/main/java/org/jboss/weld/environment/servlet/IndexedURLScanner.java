@@ -0,0 +1,386 @@
+/*
+ * License: APL2
+ */
+package org.jboss.weld.environment.servlet;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.jboss.weld.environment.servlet.deployment.URLScanner;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link URLScanner} that remembers what it found in each bean archive jar,
+ * keyed by the jar's path, size and modification time. A jar that has not
+ * changed since it was last scanned is not opened again, neither on a reload
+ * nor, when the index is persisted, on the next launch. Directories such as
+ * {@code WEB-INF/classes} are always scanned.
+ * <p/>
+ * The index is static, so it outlives the web app class loader for as long
+ * as this class is loaded from the system classpath, as it is in DevMode.
+ * <p/>
+ * A war can also ship an index written at build time by
+ * {@link BeanArchiveIndexer} under {@link #PACKAGED_INDEX}. Its entries are
+ * keyed by the jar's content instead, as the jars are unpacked with other
+ * paths and times; a jar that does not match is scanned as usual.
+ */
+public class IndexedURLScanner extends URLScanner {
+    private static final Logger log = LoggerFactory.getLogger(IndexedURLScanner.class);
+
+    private static final String ARCHIVE = "archive\t";
+    private static final String CLASS = "class\t";
+    private static final String URL = "url\t";
+    private static final String JAR = "jar\t";
+    private static final String RESOURCE = "resource\t";
+
+    /**
+     * Where a war keeps the index written by {@link BeanArchiveIndexer}.
+     */
+    public static final String PACKAGED_INDEX = "/WEB-INF/weld-scan.index";
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int MAX_ZIP_COMMENT = 0xffff;
+    private static final String BEANS_XML = "META-INF/beans.xml";
+
+    private static final class Archive {
+        final long size;
+        final long lastModified;
+        final List<String> classes;
+        final List<String> urls;
+
+        Archive(long size, long lastModified, List<String> classes, List<String> urls) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.classes = classes;
+            this.urls = urls;
+        }
+    }
+
+    private static final Map<String, Archive> index = new ConcurrentHashMap<String, Archive>();
+    private static volatile boolean loaded;
+
+    private final File indexFile;
+    private final Map<String, Archive> packaged = new HashMap<String, Archive>();
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger packagedHits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    /**
+     * @param indexFile where the index is kept between launches, or null to
+     *                  keep it in memory only
+     */
+    public IndexedURLScanner(ClassLoader classLoader, File indexFile) {
+        this(classLoader, indexFile, null);
+    }
+
+    /**
+     * @param indexFile     where the index is kept between launches, or null to
+     *                      keep it in memory only
+     * @param packagedIndex the index shipped with the war, or null
+     */
+    public IndexedURLScanner(ClassLoader classLoader, File indexFile, URL packagedIndex) {
+        super(classLoader);
+        this.indexFile = indexFile;
+        if (indexFile != null && !loaded) {
+            synchronized (index) {
+                if (!loaded) {
+                    read(indexFile);
+                    loaded = true;
+                }
+            }
+        }
+        if (packagedIndex != null) {
+            readPackaged(packagedIndex);
+        }
+    }
+
+    @Override
+    protected void handleArchiveByFile(File file, Set<String> classes, Set<URL> urls) throws IOException {
+        String key = file.getAbsolutePath();
+        Archive archive = index.get(key);
+        if (archive != null && archive.size == file.length() && archive.lastModified == file.lastModified()) {
+            hits.incrementAndGet();
+            classes.addAll(archive.classes);
+            for (String url : archive.urls) {
+                urls.add(new URL(url));
+            }
+            return;
+        }
+
+        if (!packaged.isEmpty()) {
+            long size = file.length();
+            long lastModified = file.lastModified();
+            String contentKey;
+            try {
+                contentKey = contentKey(file);
+            } catch (IOException e) {
+                contentKey = null;
+            }
+            archive = contentKey == null ? null : packaged.get(contentKey);
+            if (archive != null) {
+                packagedHits.incrementAndGet();
+                List<String> urlStrings = new ArrayList<String>(archive.urls.size());
+                for (String resource : archive.urls) {
+                    URL url = new URL("jar:" + new File(file.getPath() + "!/" + resource).toURI().toURL().toExternalForm());
+                    urlStrings.add(url.toExternalForm());
+                    urls.add(url);
+                }
+                classes.addAll(archive.classes);
+                index.put(key, new Archive(size, lastModified, archive.classes, urlStrings));
+                return;
+            }
+        }
+
+        misses.incrementAndGet();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        List<String> foundClasses = new ArrayList<String>();
+        List<String> urlStrings = new ArrayList<String>(1);
+        scanArchive(file, foundClasses, urlStrings);
+        index.put(key, new Archive(size, lastModified, foundClasses, urlStrings));
+        classes.addAll(foundClasses);
+        for (String url : urlStrings) {
+            urls.add(new URL(url));
+        }
+    }
+
+    /**
+     * Lists what {@link URLScanner#handleArchiveByFile} would report for a
+     * jar, straight into the lists kept in the index. Unlike Weld, only the
+     * {@code beans.xml} entry gets a URL built, not every entry.
+     */
+    private static void scanArchive(File file, List<String> classes, List<String> urls) {
+        try {
+            ZipFile zip = new ZipFile(file);
+            try {
+                Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    String name = entries.nextElement().getName();
+                    if (name.endsWith(".class")) {
+                        classes.add(filenameToClassname(name));
+                    } else if (name.equals(BEANS_XML)) {
+                        urls.add("jar:" + new File(file.getPath() + "!/" + name).toURI().toURL().toExternalForm());
+                    }
+                }
+            } finally {
+                zip.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Error handling file " + file, e);
+        }
+    }
+
+    /**
+     * @return the number of jars taken from the packaged index so far
+     */
+    int getPackagedHits() {
+        return packagedHits.get();
+    }
+
+    /**
+     * Forgets every indexed archive, so the next scan is a cold one.
+     */
+    static void clear() {
+        index.clear();
+    }
+
+    /**
+     * Logs how many archives came from the index, and persists it if any
+     * had to be scanned.
+     */
+    public void finish() {
+        log.debug("Bean archive scan: " + hits.get() + " jars from the index, " + packagedHits.get()
+                + " from the packaged index, " + misses.get() + " scanned");
+        if (indexFile != null && misses.get() + packagedHits.get() > 0) {
+            synchronized (index) {
+                write(indexFile);
+            }
+        }
+    }
+
+    /**
+     * Writes the entries for the given jars that are bean archives in the
+     * packaged index format.
+     *
+     * @return the number of bean archives written
+     */
+    int writePackaged(List<File> jars, Writer writer) throws IOException {
+        int archives = 0;
+        for (File jar : jars) {
+            List<String> classes = new ArrayList<String>();
+            List<String> urls = new ArrayList<String>(1);
+            scanArchive(jar, classes, urls);
+            if (urls.isEmpty()) {
+                continue;
+            }
+            archives++;
+            writer.write(JAR + contentKey(jar) + "\t" + jar.getName() + "\n");
+            for (String name : classes) {
+                writer.write(CLASS + name + "\n");
+            }
+            for (String url : urls) {
+                writer.write(RESOURCE + url.substring(url.lastIndexOf("!/") + 2) + "\n");
+            }
+        }
+        return archives;
+    }
+
+    /**
+     * Identifies a jar by its size and a checksum of its central directory,
+     * which lists the name and CRC of every entry. Reading it costs one seek
+     * and the directory's own size.
+     *
+     * @return the key, or null if the file is not a zip this can read
+     */
+    static String contentKey(File file) throws IOException {
+        RandomAccessFile zip = new RandomAccessFile(file, "r");
+        try {
+            long length = zip.length();
+            int tailLength = (int) Math.min(length, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_ZIP_COMMENT);
+            byte[] tail = new byte[tailLength];
+            zip.seek(length - tailLength);
+            zip.readFully(tail);
+            for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+                if (littleEndianInt(tail, i) != END_OF_CENTRAL_DIRECTORY) {
+                    continue;
+                }
+                long directorySize = littleEndianInt(tail, i + 12) & 0xffffffffL;
+                long directoryOffset = littleEndianInt(tail, i + 16) & 0xffffffffL;
+                if (directoryOffset + directorySize > length || directorySize > Integer.MAX_VALUE) {
+                    return null;
+                }
+                byte[] directory = new byte[(int) directorySize];
+                zip.seek(directoryOffset);
+                zip.readFully(directory);
+                CRC32 crc = new CRC32();
+                crc.update(directory);
+                return length + ":" + Long.toHexString(crc.getValue());
+            }
+            return null;
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static int littleEndianInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8
+                | (bytes[offset + 2] & 0xff) << 16 | (bytes[offset + 3] & 0xff) << 24;
+    }
+
+    private void readPackaged(URL url) {
+        try {
+            InputStream in = url.openStream();
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+                String key = null;
+                List<String> classes = null;
+                List<String> resources = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(JAR)) {
+                        String[] parts = line.split("\t");
+                        key = parts[1];
+                        classes = new ArrayList<String>();
+                        resources = new ArrayList<String>();
+                        packaged.put(key, new Archive(0, 0, classes, resources));
+                    } else if (key != null && line.startsWith(CLASS)) {
+                        classes.add(line.substring(CLASS.length()));
+                    } else if (key != null && line.startsWith(RESOURCE)) {
+                        resources.add(line.substring(RESOURCE.length()));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            log.warn("Ignoring unreadable packaged bean archive index " + url, e);
+            packaged.clear();
+        }
+    }
+
+    private static void read(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String path = null;
+                long size = 0;
+                long lastModified = 0;
+                List<String> classes = null;
+                List<String> urls = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(ARCHIVE)) {
+                        if (path != null) {
+                            index.put(path, new Archive(size, lastModified, classes, urls));
+                        }
+                        String[] parts = line.split("\t");
+                        path = parts[3];
+                        size = Long.parseLong(parts[1]);
+                        lastModified = Long.parseLong(parts[2]);
+                        classes = new ArrayList<String>();
+                        urls = new ArrayList<String>();
+                    } else if (path != null && line.startsWith(CLASS)) {
+                        classes.add(line.substring(CLASS.length()));
+                    } else if (path != null && line.startsWith(URL)) {
+                        urls.add(line.substring(URL.length()));
+                    }
+                }
+                if (path != null) {
+                    index.put(path, new Archive(size, lastModified, classes, urls));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (Exception e) {
+            log.warn("Ignoring unreadable bean archive index " + file, e);
+            index.clear();
+        }
+    }
+
+    private static void write(File file) {
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                for (Map.Entry<String, Archive> entry : index.entrySet()) {
+                    Archive archive = entry.getValue();
+                    writer.write(ARCHIVE + archive.size + "\t" + archive.lastModified + "\t" + entry.getKey() + "\n");
+                    for (String name : archive.classes) {
+                        writer.write(CLASS + name + "\n");
+                    }
+                    for (String url : archive.urls) {
+                        writer.write(URL + url + "\n");
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to write bean archive index " + file, e);
+        }
+    }
+}
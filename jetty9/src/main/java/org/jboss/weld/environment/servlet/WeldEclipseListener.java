@@ -16,20 +16,33 @@
  */
 package org.jboss.weld.environment.servlet;
 
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javassist.util.proxy.ProxyFactory;
 import javassist.util.proxy.ProxyFactory.ClassLoaderProvider;
 
 import javax.el.ELContextListener;
 import javax.enterprise.inject.spi.BeanManager;
+import javax.enterprise.inject.spi.Extension;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletRequestEvent;
 import javax.servlet.jsp.JspApplicationContext;
 import javax.servlet.jsp.JspFactory;
 
+import org.eclipse.jetty.server.handler.ContextHandler;
 import org.jboss.weld.bootstrap.api.Bootstrap;
 import org.jboss.weld.bootstrap.api.Environments;
+import org.jboss.weld.bootstrap.spi.Metadata;
 import org.jboss.weld.environment.Container;
 import org.jboss.weld.environment.ContainerContext;
 import org.jboss.weld.environment.gwtdev.GwtDevHostedModeJettyPost72Container;
@@ -63,9 +76,40 @@ public class WeldEclipseListener extends ForwardingServletListener {
     private static final String EXPRESSION_FACTORY_NAME = "org.jboss.weld.el.ExpressionFactory";
     public static final String BEAN_MANAGER_ATTRIBUTE_NAME = Listener.class.getPackage().getName() + "." + BeanManager.class.getName();
 
+    /**
+     * File to keep the bean archive scan index in between launches; without
+     * it the index only lasts as long as the JVM.
+     */
+    public static final String SCAN_INDEX_PROPERTY = "errai.jetty.weld.scanIndex";
+
+    /**
+     * Validates the beans in the background once everything else has been
+     * deployed, so the web app starts without waiting for it. Requests wait
+     * until validation has finished; AfterDeploymentValidation observers run
+     * late accordingly. If validation fails, the web app is marked
+     * unavailable and the requests that waited for it fail.
+     */
+    public static final String DEFER_VALIDATION_PROPERTY = "errai.jetty.weld.deferValidation";
+
+    /**
+     * Makes unscoped and pseudo-scoped Errai services application scoped, so
+     * they are created by their first message. See {@link BeanActivationExtension}.
+     */
+    public static final String LAZY_SERVICES_PROPERTY = "errai.jetty.weld.lazyServices";
+
+    /**
+     * Logs the managed beans that were never instantiated when the web app
+     * stops.
+     */
+    public static final String ACTIVATION_REPORT_PROPERTY = "errai.jetty.weld.activationReport";
+
     private final transient Bootstrap bootstrap;
     private final transient ServletListener weldListener;
     private Container container;
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    private BeanActivationExtension activation;
+    private volatile CountDownLatch validated;
+    private volatile Throwable validationFailure;
 
     public WeldEclipseListener() {
         try {
@@ -82,6 +126,9 @@ public class WeldEclipseListener extends ForwardingServletListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        awaitValidation();
+        if (activation != null)
+            activation.report();
         bootstrap.shutdown();
 
         if (container != null)
@@ -101,7 +148,32 @@ public class WeldEclipseListener extends ForwardingServletListener {
      * @return new servlet deployment
      */
     protected ServletDeployment createServletDeployment(ServletContext context, Bootstrap bootstrap) {
-        return new ServletDeployment(context, bootstrap);
+        boolean lazyServices = Boolean.getBoolean(LAZY_SERVICES_PROPERTY);
+        boolean report = Boolean.getBoolean(ACTIVATION_REPORT_PROPERTY);
+        if (!lazyServices && !report)
+            return new ServletDeployment(context, bootstrap);
+
+        final BeanActivationExtension extension = new BeanActivationExtension(lazyServices, report);
+        activation = extension;
+        return new ServletDeployment(context, bootstrap) {
+            @Override
+            public Iterable<Metadata<Extension>> getExtensions() {
+                List<Metadata<Extension>> extensions = new ArrayList<Metadata<Extension>>();
+                for (Metadata<Extension> loaded : super.getExtensions()) {
+                    extensions.add(loaded);
+                }
+                extensions.add(new Metadata<Extension>() {
+                    public Extension getValue() {
+                        return extension;
+                    }
+
+                    public String getLocation() {
+                        return WeldEclipseListener.class.getName();
+                    }
+                });
+                return extensions;
+            }
+        };
     }
 
     /**
@@ -117,7 +189,14 @@ public class WeldEclipseListener extends ForwardingServletListener {
             classLoader.loadClass("org.jboss.virtual.VFS"); // check if we can use JBoss VFS
             return new VFSURLScanner(classLoader);
         } catch (Throwable t) {
-            return null;
+            String indexFile = System.getProperty(SCAN_INDEX_PROPERTY);
+            URL packagedIndex = null;
+            try {
+                packagedIndex = context.getResource(IndexedURLScanner.PACKAGED_INDEX);
+            } catch (MalformedURLException e) {
+                log.debug("No packaged bean archive index", e);
+            }
+            return new IndexedURLScanner(classLoader, indexFile == null ? null : new File(indexFile), packagedIndex);
         }
     }
 
@@ -135,12 +214,18 @@ public class WeldEclipseListener extends ForwardingServletListener {
         ClassLoader classLoader = Reflections.getClassLoader();
         ServletContext context = sce.getServletContext();
 
+        long start = System.nanoTime();
         URLScanner scanner = createUrlScanner(classLoader, context);
         if (scanner != null) {
             context.setAttribute(URLScanner.class.getName(), scanner);
         }
 
         ServletDeployment deployment = createServletDeployment(context, bootstrap);
+        if (scanner instanceof IndexedURLScanner) {
+            ((IndexedURLScanner) scanner).finish();
+        }
+        start = phase("scan", start);
+
         try {
             deployment.getWebAppBeanDeploymentArchive().getServices().add(
                     ResourceInjectionServices.class, new ServletResourceInjectionServices() {
@@ -152,6 +237,7 @@ public class WeldEclipseListener extends ForwardingServletListener {
 
         bootstrap.startContainer(Environments.SERVLET, deployment).startInitialization();
         WeldManager manager = bootstrap.getManager(deployment.getWebAppBeanDeploymentArchive());
+        start = phase("startInitialization", start);
 
         ContainerContext cc = new ContainerContext(sce, manager);
         StringBuilder dump = new StringBuilder();
@@ -164,6 +250,7 @@ public class WeldEclipseListener extends ForwardingServletListener {
             container.initialize(cc);
             this.container = container;
         }
+        start = phase("container", start);
 
         // Push the manager into the servlet context so we can access in JSF
         context.setAttribute(BEAN_MANAGER_ATTRIBUTE_NAME, manager);
@@ -181,10 +268,98 @@ public class WeldEclipseListener extends ForwardingServletListener {
             context.setAttribute(EXPRESSION_FACTORY_NAME, manager.wrapExpressionFactory(jspApplicationContext.getExpressionFactory()));
         }
 
-        bootstrap.deployBeans().validateBeans().endInitialization();
+        bootstrap.deployBeans();
+        start = phase("deployBeans", start);
+
+        if (Boolean.getBoolean(DEFER_VALIDATION_PROPERTY)) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            validated = latch;
+            final long deferredStart = start;
+            final ServletContext servletContext = context;
+            Thread validation = new Thread("weld-validation") {
+                @Override
+                public void run() {
+                    try {
+                        bootstrap.validateBeans().endInitialization();
+                        phase("validateBeans (deferred)", deferredStart);
+                        logPhases();
+                    } catch (Throwable t) {
+                        validationFailure = t;
+                        log.error("Deferred bean validation failed, the deployment is not usable", t);
+                        markUnavailable(servletContext);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
+            validation.setDaemon(true);
+            validation.start();
+        } else {
+            bootstrap.validateBeans().endInitialization();
+            phase("validateBeans", start);
+            logPhases();
+        }
         super.contextInitialized(sce);
     }
 
+    /**
+     * Waits for deferred validation, and fails the request if it failed.
+     */
+    @Override
+    public void requestInitialized(ServletRequestEvent sre) {
+        awaitValidation();
+        Throwable failure = validationFailure;
+        if (failure != null)
+            throw new IllegalStateException("Deferred bean validation failed, the deployment is not usable", failure);
+        super.requestInitialized(sre);
+    }
+
+    /**
+     * Makes Jetty answer {@code 503} for the web app, as it does for one
+     * that failed to start.
+     */
+    private static void markUnavailable(ServletContext context) {
+        if (context instanceof ContextHandler.Context) {
+            ((ContextHandler.Context) context).getContextHandler().setAvailable(false);
+        }
+    }
+
+    /**
+     * Blocks until deferred validation, if any, has finished.
+     */
+    private void awaitValidation() {
+        CountDownLatch latch = validated;
+        if (latch == null) {
+            return;
+        }
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records how long a bootstrap phase took.
+     *
+     * @return the end of the phase, to start the next one from
+     */
+    private long phase(String name, long start) {
+        long end = System.nanoTime();
+        synchronized (phases) {
+            phases.put(name, TimeUnit.NANOSECONDS.toMillis(end - start));
+        }
+        return end;
+    }
+
+    private void logPhases() {
+        if (log.isDebugEnabled()) {
+            synchronized (phases) {
+                log.debug("Weld bootstrap phases in ms: " + phases);
+            }
+        }
+    }
+
     @Override
     protected ServletListener delegate() {
         return weldListener;
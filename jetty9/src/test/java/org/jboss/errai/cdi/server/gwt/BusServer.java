@@ -0,0 +1,210 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.Servlet;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.jboss.errai.bus.client.api.Message;
+import org.jboss.errai.bus.client.api.base.MessageBuilder;
+import org.jboss.errai.bus.server.api.MessageQueue;
+import org.jboss.errai.bus.server.api.ServerMessageBus;
+import org.jboss.errai.bus.server.service.ErraiServiceSingleton;
+
+/**
+ * Embedded Jetty running Errai bus servlets for the bus benchmarks, with a
+ * minimal client for the long-poll protocol. All servlets of a JVM share one
+ * {@code ErraiService}, so each is mapped to a path of its own and they are
+ * measured one after the other.
+ */
+final class BusServer {
+	static final String SUBJECT = "Bench";
+
+	private static final Pattern SENT_AT = Pattern.compile("\"SentAt\":\"(\\d+)\"");
+	private static final String MESSAGE = "\"ToSubject\":\"" + SUBJECT + "\"";
+
+	private final QueuedThreadPool threadPool;
+	private final Server server;
+	private final ServerConnector connector;
+	private final ServletContextHandler context;
+
+	BusServer(int maxThreads) {
+		threadPool = new QueuedThreadPool(maxThreads);
+		server = new Server(threadPool);
+		connector = new ServerConnector(server);
+		connector.setAcceptQueueSize(1024);
+		server.addConnector(connector);
+		context = new ServletContextHandler(ServletContextHandler.SESSIONS);
+		server.setHandler(context);
+	}
+
+	void addServlet(Class<? extends Servlet> servlet, String path,
+			Map<String, String> initParameters) {
+		ServletHolder holder = new ServletHolder(servlet);
+		holder.setAsyncSupported(true);
+		holder.setInitOrder(1);
+		if (initParameters != null) {
+			holder.setInitParameters(initParameters);
+		}
+		context.addServlet(holder, path);
+	}
+
+	void start() throws Exception {
+		server.start();
+	}
+
+	void stop() throws Exception {
+		server.stop();
+	}
+
+	/**
+	 * @return the server threads that are not idle, acceptors and selectors
+	 *         included
+	 */
+	int getBusyThreads() {
+		return threadPool.getThreads() - threadPool.getIdleThreads();
+	}
+
+	ServerMessageBus getBus() {
+		return ErraiServiceSingleton.getService().getBus();
+	}
+
+	/**
+	 * Connects a client the way the Errai client bus does, with a
+	 * {@code ConnectToQueue} command.
+	 */
+	Client connect(String path, String clientId) throws IOException {
+		Set<MessageQueue> before = new HashSet<MessageQueue>(getBus()
+				.getMessageQueues().values());
+		Client client = new Client(path, clientId);
+		HttpURLConnection connection = client.open("POST", "&phase=connect");
+		connection.setDoOutput(true);
+		OutputStream out = connection.getOutputStream();
+		out.write(("[{\"ToSubject\":\"ServerBus\",\"CommandType\":\"ConnectToQueue\","
+				+ "\"PriorityProcessing\":\"1\"}]").getBytes("UTF-8"));
+		out.close();
+		read(connection);
+		String cookie = connection.getHeaderField("Set-Cookie");
+		client.cookie = cookie.substring(0, cookie.indexOf(';'));
+		for (MessageQueue queue : getBus().getMessageQueues().values()) {
+			if (!before.contains(queue)) {
+				client.queue = queue;
+			}
+		}
+		if (client.queue == null) {
+			throw new IllegalStateException("No queue for " + clientId);
+		}
+		return client;
+	}
+
+	/**
+	 * @return a message for the benchmark subject carrying the given
+	 *         {@link System#nanoTime()}
+	 */
+	static Message message(long sentAt) {
+		return MessageBuilder.createMessage(SUBJECT).signalling()
+				.with("SentAt", String.valueOf(sentAt)).noErrorHandling()
+				.getMessage();
+	}
+
+	/**
+	 * @return the number of benchmark messages in a response
+	 */
+	static int count(String payload) {
+		int count = 0;
+		for (int i = payload.indexOf(MESSAGE); i >= 0; i = payload.indexOf(
+				MESSAGE, i + 1)) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Records the latency of every benchmark message in a response.
+	 */
+	static void recordLatencies(String payload, LatencyHistogram histogram) {
+		long now = System.nanoTime();
+		Matcher matcher = SENT_AT.matcher(payload);
+		while (matcher.find()) {
+			histogram.record((now - Long.parseLong(matcher.group(1))) / 1000);
+		}
+	}
+
+	static String read(HttpURLConnection connection) throws IOException {
+		InputStream in = connection.getResponseCode() >= 400 ? connection
+				.getErrorStream() : connection.getInputStream();
+		if (in == null) {
+			return "";
+		}
+		try {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				body.write(buffer, 0, read);
+			}
+			return body.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+	final class Client {
+		final String path;
+		final String clientId;
+		String cookie;
+		MessageQueue queue;
+
+		Client(String path, String clientId) {
+			this.path = path;
+			this.clientId = clientId;
+		}
+
+		HttpURLConnection open(String method, String query) throws IOException {
+			URL url = new URL("http", "localhost", connector.getLocalPort(), path
+					+ "?clientId=" + clientId + query);
+			HttpURLConnection connection = (HttpURLConnection) url
+					.openConnection();
+			connection.setRequestMethod(method);
+			connection.setRequestProperty("RemoteQueueID", clientId);
+			if (cookie != null) {
+				connection.setRequestProperty("Cookie", cookie);
+			}
+			connection.setReadTimeout(120000);
+			return connection;
+		}
+
+		/**
+		 * Long-polls once.
+		 */
+		String poll() throws IOException {
+			return read(open("GET", ""));
+		}
+
+		/**
+		 * Opens a Server-Sent Events downstream.
+		 */
+		InputStream openStream() throws IOException {
+			HttpURLConnection connection = open("GET", "");
+			connection.setRequestProperty("Accept", "text/event-stream");
+			return connection.getInputStream();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.errai.bus.server.servlet.DefaultBlockingServlet;
+
+/**
+ * Compares {@link DefaultBlockingServlet} with {@link JettyAsyncBusServlet}:
+ * how many server threads a number of parked long polls hold, and how long a
+ * message takes from the server queue to the client. Run with the test
+ * classpath; {@code bench.clients} (default 200) and {@code bench.rounds}
+ * (default 20) size the run.
+ */
+public class BusServletBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int clients = Integer.getInteger("bench.clients", 200);
+		int rounds = Integer.getInteger("bench.rounds", 20);
+
+		// enough threads for the blocking servlet to park every poll
+		BusServer server = new BusServer(clients + 100);
+		server.addServlet(DefaultBlockingServlet.class, "/blocking/in.erraiBus", null);
+		server.addServlet(JettyAsyncBusServlet.class, "/async/in.erraiBus", null);
+		server.start();
+		run(server, "/blocking/in.erraiBus", "DefaultBlockingServlet", clients, rounds);
+		run(server, "/async/in.erraiBus", "JettyAsyncBusServlet", clients, rounds);
+		// not stopped: each servlet's destroy() would stop the shared ErraiService
+		System.exit(0);
+	}
+
+	private static void run(BusServer server, String path, String name, int clients,
+			int rounds) throws Exception {
+		int idle = server.getBusyThreads();
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicInteger received = new AtomicInteger();
+		final AtomicInteger releasing = new AtomicInteger();
+		List<BusServer.Client> connected = new ArrayList<BusServer.Client>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < clients; i++) {
+			final BusServer.Client client = server.connect(path, name + "-" + i);
+			connected.add(client);
+			Thread thread = new Thread(name + "-client-" + i) {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							String payload = client.poll();
+							int count = BusServer.count(payload);
+							if (count > 0 && releasing.get() > 0) {
+								return;
+							}
+							BusServer.recordLatencies(payload, latency);
+							received.addAndGet(count);
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+		settle();
+		int parked = Math.max(0, server.getBusyThreads() - idle);
+
+		for (int round = 1; round <= rounds; round++) {
+			for (BusServer.Client client : connected) {
+				client.queue.offer(BusServer.message(System.nanoTime()));
+			}
+			await(received, round * clients);
+			settle();
+		}
+
+		releasing.set(1);
+		for (BusServer.Client client : connected) {
+			client.queue.offer(BusServer.message(System.nanoTime()));
+		}
+		for (Thread thread : threads) {
+			thread.join(30000);
+		}
+		for (BusServer.Client client : connected) {
+			server.getBus().closeQueue(client.queue);
+		}
+
+		System.out.println(name + ": " + clients + " parked polls held " + parked
+				+ " server threads; delivery latency over " + latency.getCount()
+				+ " messages: p50 " + latency.getPercentile(50) + " us, p99 "
+				+ latency.getPercentile(99) + " us, max " + latency.getMax() + " us");
+	}
+
+	/**
+	 * Gives the clients time to send their next poll.
+	 */
+	private static void settle() throws InterruptedException {
+		Thread.sleep(500);
+	}
+
+	private static void await(AtomicInteger counter, int target) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 60000;
+		while (counter.get() < target) {
+			if (System.currentTimeMillis() > deadline) {
+				throw new IllegalStateException("Only " + counter.get() + " of " + target
+						+ " messages arrived");
+			}
+			Thread.sleep(1);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.junit.Test;
+
+public class ConnectorProfileTest {
+
+	@Test
+	public void customProfileIsApplied() {
+		ConnectorProfile profile = new ConnectorProfile("custom");
+		profile.setAcceptors(2);
+		profile.setSelectors(3);
+		profile.setAcceptQueueSize(77);
+		profile.setIdleTimeout(123456L);
+		profile.setOutputBufferSize(12345);
+		profile.setRequestHeaderSize(4321);
+
+		ServerConnector connector = profile.newConnector(new Server());
+		HttpConfiguration config = connector.getConnectionFactory(
+				HttpConnectionFactory.class).getHttpConfiguration();
+		assertEquals(2, connector.getAcceptors());
+		assertEquals(3, connector.getSelectorManager().getSelectorCount());
+		assertEquals(77, connector.getAcceptQueueSize());
+		assertEquals(123456L, connector.getIdleTimeout());
+		assertEquals(12345, config.getOutputBufferSize());
+		assertEquals(4321, config.getRequestHeaderSize());
+
+		assertEquals("acceptors=2, selectors=3, acceptQueueSize=77, idleTimeout=123456, "
+				+ "outputBufferSize=12345, requestHeaderSize=4321",
+				ConnectorProfile.describe(connector));
+	}
+
+	@Test
+	public void unsetValuesAreLeftToJetty() {
+		ConnectorProfile profile = new ConnectorProfile("custom");
+		profile.setIdleTimeout(1000L);
+		assertNull(profile.getRequestHeaderSize());
+
+		ServerConnector connector = profile.newConnector(new Server());
+		ServerConnector plain = new ServerConnector(new Server());
+		HttpConfiguration config = connector.getConnectionFactory(
+				HttpConnectionFactory.class).getHttpConfiguration();
+		assertEquals(1000L, connector.getIdleTimeout());
+		assertEquals(plain.getAcceptors(), connector.getAcceptors());
+		assertEquals(plain.getAcceptQueueSize(), connector.getAcceptQueueSize());
+		assertEquals(new HttpConfiguration().getRequestHeaderSize(), config.getRequestHeaderSize());
+		assertTrue(connector.getSelectorManager().getSelectorCount() > 0);
+	}
+}
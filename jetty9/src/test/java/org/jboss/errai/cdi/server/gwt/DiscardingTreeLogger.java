@@ -0,0 +1,33 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import com.google.gwt.core.ext.TreeLogger;
+
+/**
+ * TreeLogger for benchmarks: everything at or above its level is loggable,
+ * and then dropped, so the caller pays for preparing messages but not for
+ * printing them.
+ */
+final class DiscardingTreeLogger extends TreeLogger {
+	private final Type level;
+
+	DiscardingTreeLogger(Type level) {
+		this.level = level;
+	}
+
+	@Override
+	public TreeLogger branch(Type type, String msg, Throwable caught, HelpInfo helpInfo) {
+		return this;
+	}
+
+	@Override
+	public boolean isLoggable(Type type) {
+		return !type.isLowerPriorityThan(level);
+	}
+
+	@Override
+	public void log(Type type, String msg, Throwable caught, HelpInfo helpInfo) {
+	}
+}
@@ -0,0 +1,164 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.errai.bus.server.servlet.DefaultBlockingServlet;
+
+/**
+ * Compares the messages per second a client receives over the
+ * {@link JettyEventStreamBusServlet} event stream with long polling against
+ * {@link DefaultBlockingServlet}. Each client has a producer that keeps
+ * {@code bench.window} messages (default 50) in flight for
+ * {@code bench.seconds} seconds (default 10); {@code bench.clients} (default
+ * 20) clients run at once. All messages in flight share the bus transmission
+ * buffer, 2048 segments by default, so clients times window must stay well
+ * below that or the buffer wraps and messages get lost.
+ * <p/>
+ * The event stream batches for {@code bench.flushInterval} milliseconds
+ * (default 5, as the servlet), which caps a client at about one window per
+ * interval.
+ */
+public class EventStreamBenchmark {
+
+	/**
+	 * Counts what a client receives, releasing one permit of the producer's
+	 * window per message.
+	 */
+	private static final class Counter {
+		final AtomicLong received = new AtomicLong();
+		final Semaphore window;
+
+		Counter(int window) {
+			this.window = new Semaphore(window);
+		}
+
+		void add(int count) {
+			received.addAndGet(count);
+			window.release(count);
+		}
+	}
+
+	private interface Receiver {
+		void receive(BusServer.Client client, Counter counter, AtomicBoolean running)
+				throws Exception;
+	}
+
+	private static final Receiver LONG_POLL = new Receiver() {
+		@Override
+		public void receive(BusServer.Client client, Counter counter, AtomicBoolean running)
+				throws Exception {
+			while (running.get()) {
+				counter.add(BusServer.count(client.poll()));
+			}
+		}
+	};
+
+	private static final Receiver EVENT_STREAM = new Receiver() {
+		@Override
+		public void receive(BusServer.Client client, Counter counter, AtomicBoolean running)
+				throws Exception {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(client.openStream(),
+					"UTF-8"));
+			try {
+				String line;
+				while (running.get() && (line = reader.readLine()) != null) {
+					if (line.startsWith("data: ")) {
+						counter.add(BusServer.count(line));
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		int clients = Integer.getInteger("bench.clients", 20);
+		int window = Integer.getInteger("bench.window", 50);
+		String flushInterval = System.getProperty("bench.flushInterval", "5");
+		int seconds = Integer.getInteger("bench.seconds", 10);
+
+		BusServer server = new BusServer(clients * 2 + 100);
+		server.addServlet(DefaultBlockingServlet.class, "/blocking/in.erraiBus", null);
+		server.addServlet(JettyEventStreamBusServlet.class, "/stream/in.erraiBus",
+				Collections.singletonMap("flush-interval", flushInterval));
+		server.start();
+		run(server, "/blocking/in.erraiBus", "DefaultBlockingServlet", LONG_POLL, clients, window,
+				seconds);
+		run(server, "/stream/in.erraiBus", "JettyEventStreamBusServlet", EVENT_STREAM, clients,
+				window, seconds);
+		// not stopped: each servlet's destroy() would stop the shared ErraiService
+		System.exit(0);
+	}
+
+	private static void run(BusServer server, String path, String name, final Receiver receiver,
+			int clients, int window, int seconds) throws Exception {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final Counter[] counters = new Counter[clients];
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < clients; i++) {
+			final BusServer.Client client = server.connect(path, name + "-" + i);
+			final Counter counter = counters[i] = new Counter(window);
+			threads.add(new Thread(name + "-client-" + i) {
+				@Override
+				public void run() {
+					try {
+						receiver.receive(client, counter, running);
+					} catch (Exception e) {
+						if (running.get()) {
+							e.printStackTrace();
+						}
+					}
+				}
+			});
+			threads.add(new Thread(name + "-producer-" + i) {
+				@Override
+				public void run() {
+					try {
+						while (running.get()) {
+							if (counter.window.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+								client.queue.offer(BusServer.message(System.nanoTime()));
+							}
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		// count from a warmed up state
+		Thread.sleep(2000);
+		long[] start = new long[clients];
+		for (int i = 0; i < clients; i++) {
+			start[i] = counters[i].received.get();
+		}
+		Thread.sleep(seconds * 1000L);
+		long total = 0;
+		long slowest = Long.MAX_VALUE;
+		for (int i = 0; i < clients; i++) {
+			long count = counters[i].received.get() - start[i];
+			total += count;
+			slowest = Math.min(slowest, count);
+		}
+		running.set(false);
+
+		System.out.println(name + ": " + clients + " clients, " + total / seconds / clients + " messages/s per client on average, slowest "
+				+ slowest / seconds + " messages/s");
+	}
+}
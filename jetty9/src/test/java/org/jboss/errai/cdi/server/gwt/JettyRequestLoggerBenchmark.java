@@ -0,0 +1,121 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpMethod;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.jboss.errai.cdi.server.gwt.JettyLauncher.JettyRequestLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gwt.core.ext.TreeLogger;
+
+/**
+ * Cost of logging one request with its headers. Run with {@code -prof gc}:
+ * {@code gc.alloc.rate.norm} is the number of bytes allocated per logged
+ * request. {@code perHeader} logs the headers the way the logger used to,
+ * with a branch per block and a string per header, as a reference; the
+ * branches of a real TreeLogger would cost more.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JettyRequestLoggerBenchmark {
+
+	private final TreeLogger treeLogger = new DiscardingTreeLogger(TreeLogger.ALL);
+	private JettyRequestLogger requestLog;
+	private JettyRequestLogger filteredRequestLog;
+	private Request request;
+	private Response response;
+
+	@Setup
+	public void setUp() {
+		requestLog = new JettyRequestLogger(treeLogger, TreeLogger.INFO);
+		filteredRequestLog = new JettyRequestLogger(treeLogger, TreeLogger.INFO);
+		filteredRequestLog.setExcludedHeaders(new String[] { "Cookie", "User-Agent",
+				"Accept-Language", "Accept-Encoding" });
+
+		request = new Request(null, null);
+		request.setMethod(HttpMethod.GET, "GET");
+		request.setUri(new HttpURI("/app/app.nocache.js?t=1"));
+		request.setRequestURI("/app/app.nocache.js");
+		request.setRemoteAddr(new InetSocketAddress("127.0.0.1", 50000));
+		request.setTimeStamp(System.currentTimeMillis());
+		HttpFields requestFields = request.getHttpFields();
+		requestFields.add("Host", "127.0.0.1:8888");
+		requestFields.add("User-Agent",
+				"Mozilla/5.0 (X11; Linux x86_64; rv:22.0) Gecko/20100101 Firefox/22.0");
+		requestFields.add("Accept", "*/*");
+		requestFields.add("Accept-Language", "en-US,en;q=0.5");
+		requestFields.add("Accept-Encoding", "gzip, deflate");
+		requestFields.add("Referer", "http://127.0.0.1:8888/App.html?gwt.codesvr=127.0.0.1:9997");
+		requestFields.add("Cookie", "JSESSIONID=1x2y3z4w5v6u7t8s9r0q");
+		requestFields.add("Connection", "keep-alive");
+
+		// without a channel there is no output to count
+		response = new Response(null, null) {
+			@Override
+			public long getContentCount() {
+				return 6789;
+			}
+		};
+		response.setStatus(200);
+		HttpFields responseFields = response.getHttpFields();
+		responseFields.add("Content-Type", "application/javascript");
+		responseFields.add("Cache-Control", "no-cache");
+		responseFields.add("Last-Modified", "Mon, 17 Jun 2013 16:04:00 GMT");
+		responseFields.add("Content-Length", "6789");
+	}
+
+	@Benchmark
+	public Object capture() {
+		return requestLog.capture(request, response);
+	}
+
+	@Benchmark
+	public Object captureFiltered() {
+		return filteredRequestLog.capture(request, response);
+	}
+
+	@Benchmark
+	public void log() {
+		requestLog.log(request, response);
+	}
+
+	@Benchmark
+	public void perHeader() {
+		TreeLogger headers = treeLogger.branch(TreeLogger.DEBUG, "Request headers");
+		HttpFields httpFields = request.getHttpFields();
+		for (int i = 0; i < httpFields.size(); i++) {
+			HttpField headerField = httpFields.getField(i);
+			if (headerField != null)
+				headers.log(TreeLogger.DEBUG, headerField.getName() + ": " + headerField.getValue());
+		}
+		headers = treeLogger.branch(TreeLogger.DEBUG, "Response headers");
+		httpFields = response.getHttpFields();
+		for (int i = 0; i < httpFields.size(); i++) {
+			HttpField headerField = httpFields.getField(i);
+			if (headerField != null)
+				headers.log(TreeLogger.DEBUG, headerField.getName() + ": " + headerField.getValue());
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.jboss.errai.cdi.server.gwt.JettyLauncher.JettyRequestLogger;
+import org.junit.Test;
+
+import com.google.gwt.core.ext.TreeLogger;
+
+public class JettyRequestLoggerTest {
+
+	@Test
+	public void thresholdSelectsSlowRequests() {
+		JettyRequestLogger requestLog = new JettyRequestLogger(TreeLogger.NULL, TreeLogger.INFO);
+		requestLog.setSlowRequestMode(100, 0);
+		assertFalse(requestLog.isSlowOrFailed(200, TreeLogger.INFO, 99));
+		assertTrue(requestLog.isSlowOrFailed(200, TreeLogger.INFO, 100));
+		assertTrue(requestLog.isSlowOrFailed(200, TreeLogger.INFO, 5000));
+	}
+
+	@Test
+	public void errorsAreAlwaysLoggedExceptTheFavicon() {
+		JettyRequestLogger requestLog = new JettyRequestLogger(TreeLogger.NULL, TreeLogger.INFO);
+		requestLog.setSlowRequestMode(100, 0);
+		assertTrue(requestLog.isSlowOrFailed(500, TreeLogger.ERROR, 1));
+		assertTrue(requestLog.isSlowOrFailed(404, TreeLogger.WARN, 1));
+		// the missing favicon is demoted to TRACE
+		assertFalse(requestLog.isSlowOrFailed(404, TreeLogger.TRACE, 1));
+	}
+
+	@Test
+	public void percentileWaitsForEnoughSamples() {
+		JettyRequestLogger requestLog = new JettyRequestLogger(TreeLogger.NULL, TreeLogger.INFO);
+		requestLog.setSlowRequestMode(-1, 99);
+		for (int millis = 1; millis < 100; millis++) {
+			assertFalse(requestLog.isSlowOrFailed(200, TreeLogger.INFO, millis));
+		}
+		for (int millis = 100; millis <= 200; millis++) {
+			requestLog.isSlowOrFailed(200, TreeLogger.INFO, millis);
+		}
+		assertFalse(requestLog.isSlowOrFailed(200, TreeLogger.INFO, 5));
+		assertFalse(requestLog.isSlowOrFailed(200, TreeLogger.INFO, 150));
+		assertTrue(requestLog.isSlowOrFailed(200, TreeLogger.INFO, 250));
+	}
+}
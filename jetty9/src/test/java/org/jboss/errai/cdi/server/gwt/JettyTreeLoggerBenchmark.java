@@ -0,0 +1,103 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.errai.cdi.server.gwt.JettyLauncher.JettyTreeLogger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gwt.core.ext.TreeLogger;
+
+/**
+ * Cost of a Jetty log call through {@link JettyTreeLogger}, for a level that
+ * is dropped and for one that is formatted. {@code legacyFormat} is the
+ * substring-copying formatter the logger used before, as a reference. Run
+ * with {@code -prof gc} for the bytes allocated per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JettyTreeLoggerBenchmark {
+
+	private static final String MESSAGE = "Started {} in {} ms, serving\n{} from {}";
+
+	private final JettyTreeLogger disabled = new JettyTreeLogger(new DiscardingTreeLogger(
+			TreeLogger.WARN));
+	private final JettyTreeLogger enabled = new JettyTreeLogger(new DiscardingTreeLogger(
+			TreeLogger.ALL));
+	private final Object context = "o.e.j.w.WebAppContext{/,file:/work/war/}";
+	private final Object millis = Integer.valueOf(1234);
+	private final Object path = "/work/war";
+	private final Object connector = "ServerConnector@1f2e3d{HTTP/1.1}{0.0.0.0:8888}";
+	private final Throwable thrown = new IllegalStateException("Bean archive\nnot found");
+
+	@Benchmark
+	public void infoDropped() {
+		disabled.info(MESSAGE, context, millis, path, connector);
+	}
+
+	@Benchmark
+	public void infoFormatted() {
+		enabled.info(MESSAGE, context, millis, path, connector);
+	}
+
+	@Benchmark
+	public void warnThrowableFormatted() {
+		enabled.warn(thrown);
+	}
+
+	@Benchmark
+	public String legacyFormat() {
+		StringBuilder builder = new StringBuilder();
+		legacyFormat(builder, MESSAGE, context, millis, path, connector);
+		return builder.toString();
+	}
+
+	private static void legacyFormat(StringBuilder builder, String msg, Object... args) {
+		msg = String.valueOf(msg);
+		String braces = "{}";
+		int start = 0;
+		for (Object arg : args) {
+			int bracesIndex = msg.indexOf(braces, start);
+			if (bracesIndex < 0) {
+				legacyEscape(builder, msg.substring(start));
+				builder.append(" ");
+				builder.append(arg);
+				start = msg.length();
+			} else {
+				legacyEscape(builder, msg.substring(start, bracesIndex));
+				builder.append(String.valueOf(arg));
+				start = bracesIndex + braces.length();
+			}
+		}
+		legacyEscape(builder, msg.substring(start));
+	}
+
+	private static void legacyEscape(StringBuilder builder, String string) {
+		for (int i = 0; i < string.length(); ++i) {
+			char c = string.charAt(i);
+			if (Character.isISOControl(c)) {
+				if (c == '\n')
+					builder.append('|');
+				else if (c == '\r')
+					builder.append('<');
+				else
+					builder.append('?');
+			} else
+				builder.append(c);
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void smallValuesHaveExactBuckets() {
+		for (int value = 0; value < 16; value++) {
+			assertEquals(value, LatencyHistogram.indexOf(value));
+			assertEquals(value, LatencyHistogram.highestValueOf(value));
+		}
+	}
+
+	@Test
+	public void everyValueFallsWithinItsBucket() {
+		long previousHighest = 15;
+		for (int index = 16; index < 200; index++) {
+			long lowest = previousHighest + 1;
+			long highest = LatencyHistogram.highestValueOf(index);
+			assertTrue(highest >= lowest);
+			assertEquals(index, LatencyHistogram.indexOf(lowest));
+			assertEquals(index, LatencyHistogram.indexOf(highest));
+			// the bucket width is at most an eighth of its values
+			assertTrue(highest - lowest + 1 <= lowest / 8 + 1);
+			previousHighest = highest;
+		}
+	}
+
+	@Test
+	public void hugeValuesLandInTheLastBucket() {
+		int last = LatencyHistogram.indexOf(Long.MAX_VALUE);
+		assertEquals(last, LatencyHistogram.indexOf(1L << 50));
+		assertTrue(LatencyHistogram.indexOf((1L << 42) - 1) <= last);
+	}
+
+	@Test
+	public void percentilesUseNearestRank() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(50));
+		for (int value = 1; value <= 10; value++) {
+			histogram.record(value);
+		}
+		assertEquals(10, histogram.getCount());
+		assertEquals(10, histogram.getMax());
+		assertEquals(5.5, histogram.getMean(), 0.0);
+		assertEquals(1, histogram.getPercentile(0));
+		assertEquals(1, histogram.getPercentile(10));
+		assertEquals(5, histogram.getPercentile(50));
+		assertEquals(9, histogram.getPercentile(90));
+		assertEquals(10, histogram.getPercentile(91));
+		assertEquals(10, histogram.getPercentile(100));
+	}
+
+	@Test
+	public void percentilesAreCappedAtTheMaximum() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000);
+		// 1000 shares a bucket with values up to 1023
+		assertEquals(1023, LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(1000)));
+		assertEquals(1000, histogram.getPercentile(99));
+	}
+
+	@Test
+	public void percentilesStayWithinAnEighth() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int value = 1; value <= 100000; value++) {
+			histogram.record(value);
+		}
+		for (double percentile : new double[] { 50, 90, 99, 99.9 }) {
+			long exact = (long) Math.ceil(100000 * percentile / 100);
+			long reported = histogram.getPercentile(percentile);
+			assertTrue(reported >= exact);
+			assertTrue(reported <= exact + exact / 8);
+		}
+	}
+
+	@Test
+	public void negativeValuesCountAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RequestLogRingTest {
+
+	@Test
+	public void capacityIsRoundedUpToPowerOfTwo() {
+		assertEquals(1, new RequestLogRing<String>(1).capacity());
+		assertEquals(8, new RequestLogRing<String>(5).capacity());
+		assertEquals(8, new RequestLogRing<String>(8).capacity());
+	}
+
+	@Test
+	public void rejectsOffersWhenFull() {
+		RequestLogRing<String> ring = new RequestLogRing<String>(4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(ring.offer("e" + i));
+		}
+		assertFalse(ring.offer("overflow"));
+
+		String[] batch = new String[4];
+		assertEquals(1, ring.drainTo(batch, 1));
+		assertEquals("e0", batch[0]);
+		assertTrue(ring.offer("e4"));
+		assertFalse(ring.offer("overflow"));
+	}
+
+	@Test
+	public void drainKeepsOrderAcrossWraparound() {
+		RequestLogRing<Integer> ring = new RequestLogRing<Integer>(4);
+		Integer[] batch = new Integer[4];
+		int next = 0;
+		int expected = 0;
+		// ten laps around a ring of four, draining in uneven steps
+		for (int lap = 0; lap < 10; lap++) {
+			while (ring.offer(next)) {
+				next++;
+			}
+			int drained = ring.drainTo(batch, 3);
+			assertEquals(3, drained);
+			for (int i = 0; i < drained; i++) {
+				assertEquals(Integer.valueOf(expected++), batch[i]);
+			}
+		}
+		int drained = ring.drainTo(batch, 4);
+		for (int i = 0; i < drained; i++) {
+			assertEquals(Integer.valueOf(expected++), batch[i]);
+		}
+		assertEquals(next, expected);
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void drainStopsAtMaxAndOnEmpty() {
+		RequestLogRing<String> ring = new RequestLogRing<String>(8);
+		String[] batch = new String[8];
+		assertTrue(ring.isEmpty());
+		assertEquals(0, ring.drainTo(batch, 8));
+
+		ring.offer("a");
+		ring.offer("b");
+		ring.offer("c");
+		assertFalse(ring.isEmpty());
+		assertEquals(2, ring.drainTo(batch, 2));
+		assertArrayEquals(new String[] { "a", "b" }, Arrays.copyOf(batch, 2));
+		assertEquals(1, ring.drainTo(batch, 8));
+		assertEquals("c", batch[0]);
+		assertTrue(ring.isEmpty());
+	}
+
+	@Test
+	public void concurrentProducersLoseNothingThatWasAccepted() throws Exception {
+		final RequestLogRing<Integer> ring = new RequestLogRing<Integer>(64);
+		final int producers = 4;
+		final int perProducer = 10000;
+		Thread[] threads = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			final int base = p * perProducer;
+			threads[p] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perProducer; i++) {
+						while (!ring.offer(base + i)) {
+							Thread.yield();
+						}
+					}
+				}
+			};
+			threads[p].start();
+		}
+
+		boolean[] seen = new boolean[producers * perProducer];
+		int[] lastPerProducer = new int[producers];
+		Arrays.fill(lastPerProducer, -1);
+		Integer[] batch = new Integer[16];
+		int received = 0;
+		while (received < seen.length) {
+			int drained = ring.drainTo(batch, batch.length);
+			for (int i = 0; i < drained; i++) {
+				int value = batch[i];
+				assertFalse(seen[value]);
+				seen[value] = true;
+				// each producer's own elements come out in order
+				int producer = value / perProducer;
+				assertTrue(value > lastPerProducer[producer]);
+				lastPerProducer[producer] = value;
+			}
+			received += drained;
+			if (drained == 0) {
+				Thread.yield();
+			}
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertTrue(ring.isEmpty());
+	}
+}
@@ -0,0 +1,51 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class RequestMetricsHandlerTest {
+
+	@Test
+	public void defaultRoutesPreferTheMoreSpecificGroups() {
+		RequestMetricsHandler handler = new RequestMetricsHandler(
+				RequestMetricsHandler.DEFAULT_ROUTES, null);
+		assertEquals("cache", route(handler, "/app/4F2A.cache.html"));
+		assertEquals("cache", route(handler, "/app/4F2A.cache.js"));
+		assertEquals("nocache", route(handler, "/app/app.nocache.js"));
+		assertEquals("hostpage", route(handler, "/App.html"));
+		assertEquals("hostpage", route(handler, "/"));
+		assertEquals("bus", route(handler, "/app/in.erraiBus"));
+		assertEquals("other", route(handler, "/app/style.css"));
+	}
+
+	@Test
+	public void firstMatchingGroupWins() {
+		RequestMetricsHandler handler = new RequestMetricsHandler(
+				"pages=*.html,cache=*.cache.html", null);
+		assertEquals("pages", route(handler, "/app/4F2A.cache.html"));
+	}
+
+	@Test
+	public void matchesPrefixAndExactPatterns() {
+		RequestMetricsHandler handler = new RequestMetricsHandler(
+				"static=/static/*, health = /health", null);
+		assertEquals("static", route(handler, "/static/img/logo.png"));
+		assertEquals("other", route(handler, "/staticfile"));
+		assertEquals("health", route(handler, "/health"));
+		assertEquals("other", route(handler, "/health/deep"));
+		assertEquals(3, handler.getRoutes().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsGroupsWithoutName() {
+		new RequestMetricsHandler("*.html", null);
+	}
+
+	private static String route(RequestMetricsHandler handler, String path) {
+		return handler.routeFor(path).getName();
+	}
+}
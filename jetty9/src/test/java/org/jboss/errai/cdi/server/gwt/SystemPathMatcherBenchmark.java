@@ -0,0 +1,60 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link SystemPathMatcher} against the {@code replace} and
+ * {@code startsWith} chain it replaced, over a mix of class and resource
+ * names as a web app loads them. Each operation matches every name once.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SystemPathMatcherBenchmark {
+
+	private final SystemPathMatcher matcher = new SystemPathMatcher(
+			SystemPathMatcher.DEFAULT_PREFIXES);
+
+	private final String[] names = { "com.example.app.server.OrderService",
+			"com/example/app/server/OrderService.class", "org.jboss.weld.bean.ManagedBean",
+			"org/jboss/errai/bus/server/ServerMessageBusImpl.class",
+			"org.eclipse.jetty.servlet.ServletHolder", "org/apache/jasper/servlet/JspServlet.class",
+			"org.eclipse.jetty.util.log.Log", "META-INF/beans.xml", "javax.enterprise.inject.Any",
+			"org.apache.xerces.parsers.SAXParser" };
+
+	@Benchmark
+	public void trie(Blackhole blackhole) {
+		for (String name : names) {
+			blackhole.consume(matcher.matches(name));
+		}
+	}
+
+	@Benchmark
+	public void startsWithChain(Blackhole blackhole) {
+		for (String name : names) {
+			name = name.replace('/', '.');
+			blackhole.consume(name.startsWith("org.eclipse.jetty.servlet.")
+					|| name.startsWith("org.eclipse.jetty.server.")
+					|| name.startsWith("org.eclipse.jetty.plus.")
+					|| name.startsWith("org.apache.jasper.")
+					|| name.startsWith("org.apache.xerces."));
+		}
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SystemPathMatcherTest {
+
+	private final SystemPathMatcher matcher = new SystemPathMatcher(
+			SystemPathMatcher.DEFAULT_PREFIXES);
+
+	@Test
+	public void matchesClassAndResourceNames() {
+		assertTrue(matcher.matches("org.eclipse.jetty.servlet.ServletHolder"));
+		assertTrue(matcher.matches("org/eclipse/jetty/servlet/ServletHolder.class"));
+		assertTrue(matcher.matches("org/apache/jasper/JspC.class"));
+		assertTrue(matcher.matches("org.apache.xerces.parsers.SAXParser"));
+	}
+
+	@Test
+	public void rejectsOtherNames() {
+		assertFalse(matcher.matches("org.eclipse.jetty.util.log.Log"));
+		assertFalse(matcher.matches("org.eclipse.jetty.servletx.Holder"));
+		assertFalse(matcher.matches("org.eclipse.jetty.serv"));
+		assertFalse(matcher.matches("com.example.Service"));
+		assertFalse(matcher.matches(""));
+	}
+
+	@Test
+	public void prefixesMayUseEitherSeparator() {
+		SystemPathMatcher custom = new SystemPathMatcher(" com/example/shared/ , org.acme.");
+		assertTrue(custom.matches("com.example.shared.Dto"));
+		assertTrue(custom.matches("com/example/shared/Dto.class"));
+		assertTrue(custom.matches("org/acme/Thing.class"));
+		assertFalse(custom.matches("com.example.server.Service"));
+	}
+
+	@Test
+	public void aPrefixCoveringAnotherWins() {
+		SystemPathMatcher custom = new SystemPathMatcher("org.acme.,org.acme.internal.");
+		assertTrue(custom.matches("org.acme.Thing"));
+		assertTrue(custom.matches("org.acme.internal.Thing"));
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WebAppChangeTrackerTest {
+
+	/** Long enough that a scan waiting for it would show. */
+	private static final long QUIET_MILLIS = 1000;
+
+	private File app;
+	private WebAppChangeTracker tracker;
+
+	@Before
+	public void createApp() throws IOException {
+		app = File.createTempFile("tracker", ".war");
+		app.delete();
+		write("WEB-INF/web.xml", "<web-app/>");
+		write("WEB-INF/classes/app/Service.class", "service");
+		write("WEB-INF/lib/library.jar", "library");
+		tracker = new WebAppChangeTracker(app, QUIET_MILLIS);
+		tracker.start();
+	}
+
+	@After
+	public void deleteApp() {
+		delete(app);
+	}
+
+	@Test
+	public void unchangedTreeIsScannedWithoutWaiting() throws Exception {
+		long start = System.currentTimeMillis();
+		assertEquals(Collections.emptyList(), tracker.scan().getFiles());
+		assertTrue(System.currentTimeMillis() - start < QUIET_MILLIS);
+	}
+
+	@Test
+	public void identicalRewriteIsNoChange() throws Exception {
+		tracker.scan();
+		write("WEB-INF/classes/app/Service.class", "service");
+		write("WEB-INF/web.xml", "<web-app/>");
+		assertEquals(Collections.emptyList(), tracker.scan().getFiles());
+	}
+
+	@Test
+	public void reportsModifiedAddedAndRemovedFiles() throws Exception {
+		tracker.scan();
+		write("WEB-INF/classes/app/Service.class", "service, rebuilt");
+		write("WEB-INF/classes/app/impl/Helper.class", "helper");
+		assertTrue(new File(app, "WEB-INF/lib/library.jar").delete());
+
+		assertEquals(Arrays.asList("added WEB-INF/classes/app/impl/Helper.class",
+				"modified WEB-INF/classes/app/Service.class",
+				"removed WEB-INF/lib/library.jar"), changes());
+	}
+
+	@Test
+	public void changesStayUntilCommitted() throws Exception {
+		tracker.scan();
+		write("WEB-INF/web.xml", "<web-app version=\"3.0\"/>");
+
+		List<String> expected = Arrays.asList("modified WEB-INF/web.xml");
+		assertEquals(expected, changes());
+		// A reload that failed does not commit, so the next scan sees them again.
+		WebAppChangeTracker.Changes changes = tracker.scan();
+		assertEquals(expected, changes.getFiles());
+
+		tracker.commit(changes);
+		assertEquals(Collections.emptyList(), tracker.scan().getFiles());
+	}
+
+	@Test
+	public void removedDirectoryRemovesItsFiles() throws Exception {
+		tracker.scan();
+		write("WEB-INF/classes/app/impl/Helper.class", "helper");
+		assertEquals(Arrays.asList("added WEB-INF/classes/app/impl/Helper.class"), changes());
+		tracker.commit(tracker.scan());
+
+		delete(new File(app, "WEB-INF/classes/app"));
+		assertEquals(Arrays.asList("removed WEB-INF/classes/app/Service.class",
+				"removed WEB-INF/classes/app/impl/Helper.class"), changes());
+	}
+
+	@Test
+	public void untrackedFilesAreIgnored() throws Exception {
+		tracker.scan();
+		write("index.html", "<html/>");
+		write("WEB-INF/deploy/notes.txt", "notes");
+		// Let the watcher see both before the scan.
+		Thread.sleep(200);
+		assertEquals(Collections.emptyList(), tracker.scan().getFiles());
+	}
+
+	/**
+	 * Scans until the watcher has reported the writes made so far.
+	 *
+	 * @return the changes, sorted
+	 */
+	private List<String> changes() throws Exception {
+		long deadline = System.currentTimeMillis() + QUIET_MILLIS;
+		WebAppChangeTracker.Changes changes = tracker.scan();
+		while (changes.isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			changes = tracker.scan();
+		}
+		List<String> files = new ArrayList<String>(changes.getFiles());
+		Collections.sort(files);
+		return files;
+	}
+
+	private void write(String path, String content) throws IOException {
+		File file = new File(app, path);
+		file.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * License: APL2
+ */
+package org.jboss.errai.cdi.server.gwt;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import org.eclipse.jetty.webapp.WebAppClassLoader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gwt.core.ext.TreeLogger;
+
+/**
+ * Loads a web app's classes from many threads at once, both explicitly and
+ * through the JVM resolving the references between them, as Weld bootstrap
+ * and the first requests after a reload do.
+ */
+public class WebAppClassLoaderStressTest {
+
+	private static final int CLASSES = 64;
+	private static final int THREADS = 16;
+	private static final int GENERATIONS = 20;
+
+	private File war;
+	private File classes;
+	private ExecutorService executor;
+
+	@Before
+	public void compileFixtures() throws Exception {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assumeNotNull(compiler);
+
+		war = File.createTempFile("stress", ".war");
+		war.delete();
+		classes = new File(war, "WEB-INF/classes");
+		File sources = new File(war, "src/stress");
+		assertTrue(classes.mkdirs() && sources.mkdirs());
+
+		List<String> args = new ArrayList<String>();
+		args.add("-nowarn");
+		args.add("-d");
+		args.add(classes.getPath());
+		for (int i = 0; i < CLASSES; i++) {
+			// Each class initializes the next, so loading one resolves the
+			// rest of the chain from inside the JVM. The chain must not be
+			// a cycle, or class initialization itself would deadlock.
+			File source = new File(sources, "Fixture" + i + ".java");
+			Writer writer = new OutputStreamWriter(new FileOutputStream(source), "UTF-8");
+			try {
+				writer.write("package stress;\npublic class Fixture" + i
+						+ " {\n  public static final Object NEXT = "
+						+ (i + 1 < CLASSES ? "new Fixture" + (i + 1) + "()" : "null")
+						+ ";\n}\n");
+			} finally {
+				writer.close();
+			}
+			args.add(source.getPath());
+		}
+		assertEquals(0, compiler.run(null, null, null, args.toArray(new String[args.size()])));
+		executor = Executors.newFixedThreadPool(THREADS);
+	}
+
+	@After
+	public void cleanUp() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+		if (war != null) {
+			delete(war);
+		}
+	}
+
+	@Test
+	public void concurrentLoadsDefineEachClassOnce() throws Exception {
+		for (int generation = 0; generation < GENERATIONS; generation++) {
+			JettyLauncher.WebAppContextWithReload context = new JettyLauncher.WebAppContextWithReload(
+					TreeLogger.NULL, war.getPath(), "/");
+			final WebAppClassLoader loader = context.newClassLoader(new ClassLoader(null) {
+			});
+			loader.addClassPath(classes.getPath());
+
+			final CyclicBarrier start = new CyclicBarrier(THREADS);
+			List<Future<Class<?>[]>> results = new ArrayList<Future<Class<?>[]>>();
+			for (int t = 0; t < THREADS; t++) {
+				final int offset = t * CLASSES / THREADS;
+				final boolean initialize = t % 2 == 0;
+				results.add(executor.submit(new Callable<Class<?>[]>() {
+					@Override
+					public Class<?>[] call() throws Exception {
+						Class<?>[] loaded = new Class<?>[CLASSES];
+						start.await();
+						for (int i = 0; i < CLASSES; i++) {
+							int index = (offset + i) % CLASSES;
+							String name = "stress.Fixture" + index;
+							loaded[index] = initialize ? Class.forName(name, true, loader)
+									: loader.loadClass(name);
+						}
+						return loaded;
+					}
+				}));
+			}
+
+			Class<?>[] first = null;
+			for (Future<Class<?>[]> result : results) {
+				Class<?>[] loaded;
+				try {
+					loaded = result.get(30, TimeUnit.SECONDS);
+				} catch (TimeoutException e) {
+					throw new AssertionError("Class loading deadlocked in generation " + generation);
+				}
+				if (first == null) {
+					first = loaded;
+				}
+				for (int i = 0; i < CLASSES; i++) {
+					assertSame(loader, loaded[i].getClassLoader());
+					assertSame(first[i], loaded[i]);
+				}
+			}
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
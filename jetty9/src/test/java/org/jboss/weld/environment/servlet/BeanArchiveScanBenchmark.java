@@ -0,0 +1,122 @@
+/*
+ * License: APL2
+ */
+package org.jboss.weld.environment.servlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.jboss.weld.environment.servlet.deployment.URLScanner;
+
+/**
+ * Times the bean archive scan of a web app's jars: Weld's own
+ * {@link URLScanner}, which opens every jar on every start, against
+ * {@link IndexedURLScanner} on the first scan of the run, on cold scans with
+ * an empty index and on the warm scans of later reloads. Run with the test classpath; {@code bench.jars} (default 40),
+ * {@code bench.classes} per jar (default 400) and {@code bench.rounds}
+ * (default 20) size the run. With {@code bench.indexFile} the index is
+ * persisted there, so a second run shows a launch that starts warm.
+ */
+public class BeanArchiveScanBenchmark {
+
+	private static final String[] BEANS_XML = { "META-INF/beans.xml" };
+
+	public static void main(String[] args) throws Exception {
+		int jars = Integer.getInteger("bench.jars", 40);
+		int classes = Integer.getInteger("bench.classes", 400);
+		int rounds = Integer.getInteger("bench.rounds", 20);
+		String indexFile = System.getProperty("bench.indexFile");
+
+		File dir = new File(System.getProperty("bench.dir", "target/bean-archives"));
+		URL[] urls = new URL[jars];
+		for (int i = 0; i < jars; i++) {
+			File jar = new File(dir, "archive-" + i + ".jar");
+			if (!jar.isFile()) {
+				writeJar(jar, "bench.archive" + i, classes);
+			}
+			urls[i] = jar.toURI().toURL();
+		}
+		ClassLoader loader = new URLClassLoader(urls, null);
+
+		// Also warms up the JIT for the parts both scanners share.
+		long[] plain = new long[rounds];
+		int found = 0;
+		for (int i = 0; i < rounds; i++) {
+			long start = System.nanoTime();
+			found = scan(new URLScanner(loader));
+			plain[i] = System.nanoTime() - start;
+		}
+
+		// A launch that finds a persisted index starts warm, so time the
+		// first scan of this run on its own.
+		IndexedURLScanner indexed = new IndexedURLScanner(loader,
+				indexFile == null ? null : new File(indexFile));
+		long start = System.nanoTime();
+		scan(indexed);
+		long launch = System.nanoTime() - start;
+		indexed.finish();
+
+		long[] cold = new long[rounds];
+		for (int i = 0; i < rounds; i++) {
+			IndexedURLScanner.clear();
+			IndexedURLScanner scanner = new IndexedURLScanner(loader, null);
+			start = System.nanoTime();
+			scan(scanner);
+			cold[i] = System.nanoTime() - start;
+		}
+
+		long[] warm = new long[rounds];
+		for (int i = 0; i < rounds; i++) {
+			IndexedURLScanner reload = new IndexedURLScanner(loader, null);
+			start = System.nanoTime();
+			scan(reload);
+			warm[i] = System.nanoTime() - start;
+		}
+
+		System.out.println(jars + " bean archives, " + found + " classes");
+		System.out.println("URLScanner, every start:    median " + median(plain) + " us");
+		System.out.println("IndexedURLScanner, launch:  " + launch / 1000 + " us");
+		System.out.println("IndexedURLScanner, cold:    median " + median(cold) + " us");
+		System.out.println("IndexedURLScanner, reloads: median " + median(warm) + " us");
+	}
+
+	private static int scan(URLScanner scanner) {
+		Set<String> classes = new HashSet<String>();
+		Set<URL> urls = new HashSet<URL>();
+		scanner.scanResources(BEANS_XML, classes, urls);
+		return classes.size();
+	}
+
+	/**
+	 * Writes a bean archive; the scan only reads entry names, so the class
+	 * entries are empty.
+	 */
+	private static void writeJar(File jar, String pkg, int classes) throws Exception {
+		jar.getParentFile().mkdirs();
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+		try {
+			out.putNextEntry(new ZipEntry("META-INF/beans.xml"));
+			out.write("<beans/>".getBytes("UTF-8"));
+			out.closeEntry();
+			for (int i = 0; i < classes; i++) {
+				out.putNextEntry(new ZipEntry(pkg.replace('.', '/') + "/Bean" + i + ".class"));
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long median(long[] nanos) {
+		long[] sorted = nanos.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2] / 1000;
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * License: APL2
+ */
+package org.jboss.weld.environment.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.jboss.weld.environment.servlet.deployment.URLScanner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IndexedURLScannerTest {
+
+	private static final String[] BEANS_XML = { "META-INF/beans.xml" };
+
+	private File dir;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("scan", ".dir");
+		dir.delete();
+		assertTrue(dir.mkdirs());
+		IndexedURLScanner.clear();
+	}
+
+	@After
+	public void deleteDir() {
+		IndexedURLScanner.clear();
+		delete(dir);
+	}
+
+	@Test
+	public void packagedIndexMatchesJarsByContent() throws Exception {
+		File build = new File(dir, "build");
+		writeJar(new File(build, "a.jar"), true, "a/First", "a/Second");
+		writeJar(new File(build, "b.jar"), true, "b/Third");
+		writeJar(new File(build, "c.jar"), false, "c/NotABean");
+		File index = new File(dir, "war/WEB-INF/weld-scan.index");
+		BeanArchiveIndexer.main(new String[] { index.getPath(),
+				new File(build, "a.jar") + File.pathSeparator + new File(build, "b.jar")
+						+ File.pathSeparator + new File(build, "c.jar") });
+
+		// Unpacked with other paths and times; b.jar changed since packaging.
+		File lib = new File(dir, "war/WEB-INF/lib");
+		assertTrue(lib.mkdirs());
+		Files.copy(new File(build, "a.jar").toPath(), new File(lib, "a.jar").toPath());
+		assertTrue(new File(lib, "a.jar").setLastModified(0));
+		writeJar(new File(lib, "b.jar"), true, "b/Third", "b/Fourth");
+		Files.copy(new File(build, "c.jar").toPath(), new File(lib, "c.jar").toPath());
+		ClassLoader loader = new URLClassLoader(new URL[] { new File(lib, "a.jar").toURI().toURL(),
+				new File(lib, "b.jar").toURI().toURL(), new File(lib, "c.jar").toURI().toURL() }, null);
+
+		IndexedURLScanner scanner = new IndexedURLScanner(loader, null, index.toURI().toURL());
+		Set<String> classes = new HashSet<String>();
+		Set<URL> urls = new HashSet<URL>();
+		scanner.scanResources(BEANS_XML, classes, urls);
+
+		Set<String> expectedClasses = new HashSet<String>();
+		Set<URL> expectedUrls = new HashSet<URL>();
+		new URLScanner(loader).scanResources(BEANS_XML, expectedClasses, expectedUrls);
+		assertEquals(expectedClasses, classes);
+		assertEquals(expectedUrls, urls);
+		assertTrue(classes.contains("b.Fourth"));
+		assertEquals(1, scanner.getPackagedHits());
+	}
+
+	/**
+	 * Writes a jar with empty class entries; the scan only reads names.
+	 */
+	private static void writeJar(File jar, boolean beanArchive, String... classes) throws IOException {
+		jar.getParentFile().mkdirs();
+		ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+		try {
+			if (beanArchive) {
+				out.putNextEntry(new ZipEntry("META-INF/beans.xml"));
+				out.write("<beans/>".getBytes("UTF-8"));
+				out.closeEntry();
+			}
+			for (String name : classes) {
+				out.putNextEntry(new ZipEntry(name + ".class"));
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}